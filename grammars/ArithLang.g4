@@ -1,9 +1,11 @@
 grammar ArithLang;
 
+options { superClass = typelang.SourceParser; }
+
  // Grammar of this Programming Language
  //  - grammar rules start with lowercase
  program returns [Program ast] : 
-		e=exp { $ast = new Program($e.ast); }
+		e=exp { $ast = pos(new Program($e.ast), $start); }
 		;
 
  exp returns [Exp ast]: 
@@ -15,10 +17,10 @@ grammar ArithLang;
         ;
   
  numexp returns [NumExp ast]:
- 		      n0=Number { $ast = new NumExp( Integer.parseInt($n0.text)); }
-  		| '-' n0=Number { $ast = new NumExp(-Integer.parseInt($n0.text)); }
-  		|     n0=Number Dot n1=Number { $ast = new NumExp(Double.parseDouble(      $n0.text+"."+$n1.text)); }
-  		| '-' n0=Number Dot n1=Number { $ast = new NumExp(Double.parseDouble("-" + $n0.text+"."+$n1.text)); }
+ 		      n0=Number { $ast = pos(new NumExp( Integer.parseInt($n0.text)), $start); }
+  		| '-' n0=Number { $ast = pos(new NumExp(-Integer.parseInt($n0.text)), $start); }
+  		|     n0=Number Dot n1=Number { $ast = pos(new NumExp(Double.parseDouble(      $n0.text+"."+$n1.text)), $start); }
+  		| '-' n0=Number Dot n1=Number { $ast = pos(new NumExp(Double.parseDouble("-" + $n0.text+"."+$n1.text)), $start); }
   		;		
   
  addexp returns [AddExp ast]
@@ -26,7 +28,7 @@ grammar ArithLang;
  		'(' '+'
  		      e=exp { $list.add($e.ast); }
  		    ( e=exp { $list.add($e.ast); } )+
- 		')' { $ast = new AddExp($list); }
+ 		')' { $ast = pos(new AddExp($list), $start); }
  		;
  
  subexp returns [SubExp ast]  
@@ -34,7 +36,7 @@ grammar ArithLang;
  		'(' '-'
  		      e=exp { $list.add($e.ast); }
  		    ( e=exp { $list.add($e.ast); } )+ 
- 		')' { $ast = new SubExp($list); }
+ 		')' { $ast = pos(new SubExp($list), $start); }
  		;
 
  multexp returns [MultExp ast] 
@@ -42,7 +44,7 @@ grammar ArithLang;
  		'(' '*'
  		      e=exp { $list.add($e.ast); }
  		    ( e=exp { $list.add($e.ast); } )+ 
- 		')' { $ast = new MultExp($list); }
+ 		')' { $ast = pos(new MultExp($list), $start); }
  		;
  
  divexp returns [DivExp ast] 
@@ -50,7 +52,7 @@ grammar ArithLang;
  		'(' '/'
  		      e=exp { $list.add($e.ast); }
  		    ( e=exp { $list.add($e.ast); } )+ 
- 		')' { $ast = new DivExp($list); }
+ 		')' { $ast = pos(new DivExp($list), $start); }
  		;
 
 
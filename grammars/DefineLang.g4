@@ -1,5 +1,7 @@
 grammar DefineLang;
 
+options { superClass = typelang.SourceParser; }
+
 import VarLang; //Import all rules from VarLang grammar.
 
 // We are redefining programs to be zero or more define declarations 
@@ -10,7 +12,7 @@ program returns [Program ast]
  		    Exp expr = new UnitExp();
         ] :
 		(def=definedecl { $defs.add($def.ast); } )* (e=exp { $expr = $e.ast; } )? 
-		{ $ast = new Program($defs, $expr); }
+		{ $ast = pos(new Program($defs, $expr), $start); }
 		;
 
 // New declaration for global definitions.
@@ -18,7 +20,7 @@ definedecl returns [DefineDecl ast] :
  		'(' Define 
  			id=Identifier
  			e=exp
- 		')' { $ast = new DefineDecl($id.text, $e.ast); }
+ 		')' { $ast = pos(new DefineDecl($id.text, $e.ast), $start); }
  		;
 
  // Lexical Specification of this Programming Language
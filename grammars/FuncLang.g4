@@ -1,5 +1,7 @@
 grammar FuncLang;
 
+options { superClass = typelang.SourceParser; }
+
 import DefineLang; //Import all rules from DefineLang grammar.
 
  exp returns [Exp ast]: 
@@ -31,14 +33,14 @@ import DefineLang; //Import all rules from DefineLang grammar.
  		'(' Lambda
  			'(' (id=Identifier { $formals.add($id.text); } )* ')'
  			body=exp 
- 		')' { $ast = new LambdaExp($formals, $body.ast); }
+ 		')' { $ast = pos(new LambdaExp($formals, $body.ast), $start); }
  		;
 
  callexp returns [CallExp ast] 
         locals [ArrayList<Exp> arguments = new ArrayList<Exp>();  ] :
  		'(' f=exp 
  			( e=exp { $arguments.add($e.ast); } )* 
- 		')' { $ast = new CallExp($f.ast,$arguments); }
+ 		')' { $ast = pos(new CallExp($f.ast,$arguments), $start); }
  		;
 
  ifexp returns [IfExp ast] :
@@ -46,28 +48,28 @@ import DefineLang; //Import all rules from DefineLang grammar.
  		    e1=exp 
  			e2=exp 
  			e3=exp 
- 		')' { $ast = new IfExp($e1.ast,$e2.ast,$e3.ast); }
+ 		')' { $ast = pos(new IfExp($e1.ast,$e2.ast,$e3.ast), $start); }
  		;
 
  lessexp returns [LessExp ast] :
  		'(' Less 
  		    e1=exp 
  			e2=exp 
- 		')' { $ast = new LessExp($e1.ast,$e2.ast); }
+ 		')' { $ast = pos(new LessExp($e1.ast,$e2.ast), $start); }
  		;
 
  equalexp returns [EqualExp ast] :
  		'(' Equal 
  		    e1=exp 
  			e2=exp 
- 		')' { $ast = new EqualExp($e1.ast,$e2.ast); }
+ 		')' { $ast = pos(new EqualExp($e1.ast,$e2.ast), $start); }
  		;
 
  greaterexp returns [GreaterExp ast] :
  		'(' Greater 
  		    e1=exp 
  			e2=exp 
- 		')' { $ast = new GreaterExp($e1.ast,$e2.ast); }
+ 		')' { $ast = pos(new GreaterExp($e1.ast,$e2.ast), $start); }
  		;
 
 // Expressions related to list
@@ -75,38 +77,38 @@ import DefineLang; //Import all rules from DefineLang grammar.
  carexp returns [CarExp ast] :
  		'(' Car 
  		    e=exp 
- 		')' { $ast = new CarExp($e.ast); }
+ 		')' { $ast = pos(new CarExp($e.ast), $start); }
  		;
 
  cdrexp returns [CdrExp ast] :
  		'(' Cdr 
  		    e=exp 
- 		')' { $ast = new CdrExp($e.ast); }
+ 		')' { $ast = pos(new CdrExp($e.ast), $start); }
  		;
 
  consexp returns [ConsExp ast] :
  		'(' Cons 
  		    e1=exp 
  			e2=exp 
- 		')' { $ast = new ConsExp($e1.ast,$e2.ast); }
+ 		')' { $ast = pos(new ConsExp($e1.ast,$e2.ast), $start); }
  		;
 
  listexp returns [ListExp ast] 
         locals [ArrayList<Exp> list = new ArrayList<Exp>();] :
  		'(' List
  		    ( e=exp { $list.add($e.ast); } )* 
- 		')' { $ast = new ListExp($list); }
+ 		')' { $ast = pos(new ListExp($list), $start); }
  		;
 
  nullexp returns [NullExp ast] :
  		'(' Null 
  		    e=exp 
- 		')' { $ast = new NullExp($e.ast); }
+ 		')' { $ast = pos(new NullExp($e.ast), $start); }
  		;
 
  boolexp returns [BoolExp ast] :
- 		TrueLiteral { $ast = new BoolExp(true); } 
- 		| FalseLiteral { $ast = new BoolExp(false); } 
+ 		TrueLiteral { $ast = pos(new BoolExp(true), $start); } 
+ 		| FalseLiteral { $ast = pos(new BoolExp(false), $start); } 
  		;
  
 
@@ -1,5 +1,7 @@
 grammar RefLang;
 
+options { superClass = typelang.SourceParser; }
+
 import FuncLang; //Import all rules from FuncLang grammar.
 
 exp returns [Exp ast]: 
@@ -30,19 +32,19 @@ exp returns [Exp ast]:
 
  // New Expressions for RefLang
 refexp returns [RefExp ast] :
-    '(' Ref e=exp ')' { $ast = new RefExp($e.ast); }
+    '(' Ref e=exp ')' { $ast = pos(new RefExp($e.ast), $start); }
     ;
 
 derefexp returns [DerefExp ast] :
-    '(' Deref e=exp ')' { $ast = new DerefExp($e.ast); }
+    '(' Deref e=exp ')' { $ast = pos(new DerefExp($e.ast), $start); }
     ;
 
 assignexp returns [AssignExp ast] :
-    '(' Assign e1=exp e2=exp ')' { $ast = new AssignExp($e1.ast, $e2.ast); }
+    '(' Assign e1=exp e2=exp ')' { $ast = pos(new AssignExp($e1.ast, $e2.ast), $start); }
     ;
 
 freeexp returns [FreeExp ast] :
-    '(' Free e=exp ')' { $ast = new FreeExp($e.ast); }
+    '(' Free e=exp ')' { $ast = pos(new FreeExp($e.ast), $start); }
     ;
          
  // Lexical Specification of this Programming Language
@@ -1,5 +1,7 @@
 grammar VarLang;
 
+options { superClass = typelang.SourceParser; }
+
 import ArithLang; //Import all rules from ArithLang grammar.
  
  // New elements in the Grammar of this Programming Language
@@ -16,7 +18,7 @@ import ArithLang; //Import all rules from ArithLang grammar.
         ;
 
  varexp returns [VarExp ast]:
- 		id=Identifier { $ast = new VarExp($id.text); }
+ 		id=Identifier { $ast = pos(new VarExp($id.text), $start); }
  		;
 
  letexp  returns [LetExp ast]
@@ -27,7 +29,7 @@ import ArithLang; //Import all rules from ArithLang grammar.
  		'(' Let
  			'(' ( '(' id=Identifier e=exp ')' { $names.add($id.text); $value_exps.add($e.ast); } )+  ')'
  			body=exp
- 			')' { $ast = new LetExp($names, $value_exps, $body.ast); }
+ 			')' { $ast = pos(new LetExp($names, $value_exps, $body.ast), $start); }
  		;
 
  Let : 'let' ;
\ No newline at end of file
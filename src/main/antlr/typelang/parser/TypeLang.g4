@@ -7,11 +7,13 @@ import typelang.Type;
 import typelang.Type.*;
 }
 
+options { superClass = typelang.SourceParser; }
+
 definedecl returns [DefineDecl ast] :
     '(' Define
         id=Identifier ':' t=type
         e=exp
-    ')' { $ast = new DefineDecl($id.text, $t.ty, $e.ast); }
+    ')' { $ast = pos(new DefineDecl($id.text, $t.ty, $e.ast), $start); }
     ;
 
 // ******************* Type Expressions for TypeLang **********************
@@ -60,7 +62,7 @@ unittype returns [UnitT ty] :
 
 // ******************* New Expressions for RefLang **********************
 refexp returns [RefExp ast] :
-    '(' Ref ':' ty1=type e=exp ')' { $ast = new RefExp($e.ast, $ty1.ty); }
+    '(' Ref ':' ty1=type e=exp ')' { $ast = pos(new RefExp($e.ast, $ty1.ty), $start); }
     ;
 
 // New Expressions for FuncLang
@@ -72,14 +74,14 @@ lambdaexp returns [LambdaExp ast]
     '(' Lambda
         '(' (id=Identifier ':' ty1=type { $formals.add($id.text); $types.add($ty1.ty); } )* ')'
         body=exp
-    ')' { $ast = new LambdaExp($formals, $types, $body.ast); }
+    ')' { $ast = pos(new LambdaExp($formals, $types, $body.ast), $start); }
     ;
 
 listexp returns [ListExp ast]
     locals [ArrayList<Exp> list = new ArrayList<Exp>(); ] :
     '(' List ':' ty=type
         ( e=exp { $list.add($e.ast); } )*
-    ')' { $ast = new ListExp($ty.ty,$list); }
+    ')' { $ast = pos(new ListExp($ty.ty,$list), $start); }
     ;
 
 letexp  returns [LetExp ast]
@@ -91,7 +93,7 @@ letexp  returns [LetExp ast]
     '(' Let
         '(' ( '(' id=Identifier ':' ty1=type e=exp ')' { $names.add($id.text); $types.add($ty1.ty); $value_exps.add($e.ast); } )+  ')'
         body=exp
-    ')' { $ast = new LetExp($names, $types, $value_exps, $body.ast); }
+    ')' { $ast = pos(new LetExp($names, $types, $value_exps, $body.ast), $start); }
     ;
 
 // Lexical Specification of this Programming Language
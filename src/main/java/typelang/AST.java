@@ -65,13 +65,95 @@ public interface AST {
         V visit(AST.FreeExp e, Env<T> env);
     }
 
+    /**
+     * The text a program was parsed from, so that diagnostics can quote the
+     * part of it a node came from.
+     */
+    interface Source {
+        /**
+         * The file name, or null for a program typed at the prompt.
+         */
+        String name();
+
+        /**
+         * The characters from start to stop, both inclusive, or null if the
+         * text is no longer available.
+         */
+        String text(int start, int stop);
+    }
+
     abstract class ASTNode implements AST {
+        Source _source = null;
+        int _start = -1;
+        int _stop = -1;
+        int _line = 0;
+        int _column = 0;
+
         public abstract <V, T> V accept(Visitor<V, T> visitor, Env<T> env);
+
+        /**
+         * Records where this node was parsed from: the offsets of its first
+         * and last characters, and the line and column of the first one.
+         */
+        public void at(Source source, int start, int stop, int line, int column) {
+            _source = source;
+            _start = start;
+            _stop = stop;
+            _line = line;
+            _column = column;
+        }
+
+        public boolean hasPosition() {
+            return _start >= 0;
+        }
+
+        public int start() {
+            return _start;
+        }
+
+        public int stop() {
+            return _stop;
+        }
+
+        public int line() {
+            return _line;
+        }
+
+        public int column() {
+            return _column;
+        }
+
+        public Source source() {
+            return _source;
+        }
+
+        public String position() {
+            String name = _source == null ? null : _source.name();
+            return (name == null ? "" : name + ":") + _line + ":" + _column;
+        }
+
+        /**
+         * At most limit characters of this node's source text on one line, or
+         * null if the source is not known.
+         */
+        public String snippet(int limit) {
+            if (_source == null || _start < 0) {
+                return null;
+            }
+            int stop = Math.min(_stop, _start + limit - 1);
+            String text = stop < _start ? "" : _source.text(_start, stop);
+            if (text == null) {
+                return null;
+            }
+            text = text.replaceAll("\\s+", " ");
+            return stop < _stop ? text.stripTrailing() + " ..." : text;
+        }
     }
 
     class Program extends ASTNode {
         final List<DefineDecl> _decls;
         final Exp _e;
+        boolean _checked = false;
 
         public Program(List<DefineDecl> decls, Exp e) {
             _decls = decls;
@@ -86,16 +168,24 @@ public interface AST {
             return _decls;
         }
 
+        /**
+         * Whether the Checker has found this program well typed.
+         */
+        public boolean checked() {
+            return _checked;
+        }
+
         public <V, T> V accept(Visitor<V, T> visitor, Env<T> env) {
             return visitor.visit(this, env);
         }
     }
 
-    abstract class Exp extends ASTNode {
-        /* no-op */
+    sealed abstract class Exp extends ASTNode {
+        // the node tree a SpecializingEvaluator runs this expression as
+        SpecializingEvaluator.Node _specialized = null;
     }
 
-    class VarExp extends Exp {
+    final class VarExp extends Exp {
         final String _name;
 
         public VarExp(String name) {
@@ -111,7 +201,7 @@ public interface AST {
         }
     }
 
-    class UnitExp extends Exp {
+    final class UnitExp extends Exp {
 
         public UnitExp() {
             /* no-op */
@@ -123,7 +213,7 @@ public interface AST {
 
     }
 
-    class NumExp extends Exp {
+    final class NumExp extends Exp {
         final double _val;
 
         public NumExp(double v) {
@@ -139,7 +229,7 @@ public interface AST {
         }
     }
 
-    abstract class CompoundArithExp extends Exp {
+    sealed abstract class CompoundArithExp extends Exp {
         final List<Exp> _rest = new ArrayList<>();
 
         public CompoundArithExp(List<Exp> args) {
@@ -156,7 +246,7 @@ public interface AST {
 
     }
 
-    class AddExp extends CompoundArithExp {
+    final class AddExp extends CompoundArithExp {
 
         public AddExp(List<Exp> args) {
             super(args);
@@ -167,7 +257,7 @@ public interface AST {
         }
     }
 
-    class SubExp extends CompoundArithExp {
+    final class SubExp extends CompoundArithExp {
 
         public SubExp(List<Exp> args) {
             super(args);
@@ -178,7 +268,7 @@ public interface AST {
         }
     }
 
-    class DivExp extends CompoundArithExp {
+    final class DivExp extends CompoundArithExp {
 
         public DivExp(List<Exp> args) {
             super(args);
@@ -189,7 +279,7 @@ public interface AST {
         }
     }
 
-    class MultExp extends CompoundArithExp {
+    final class MultExp extends CompoundArithExp {
 
         public MultExp(List<Exp> args) {
             super(args);
@@ -200,7 +290,7 @@ public interface AST {
         }
     }
 
-    class BoolExp extends Exp {
+    final class BoolExp extends Exp {
         final boolean _val;
 
         public BoolExp(boolean b) {
@@ -223,11 +313,14 @@ public interface AST {
      *
      * @author hridesh
      */
-    class LetExp extends Exp {
+    final class LetExp extends Exp {
         private final List<String> _names;
         private final List<Type> _varTypes; // added for TypeLang
         private final List<Exp> _value_exps;
         private final Exp _body;
+        private boolean[] _local_cells = null;
+        Type _body_type = null;
+        private Boolean _region = null;
 
         public LetExp(List<String> names, List<Type> varTypes, List<Exp> value_exps, Exp body) {
             _names = names;
@@ -256,9 +349,43 @@ public interface AST {
             return _body;
         }
 
+        /**
+         * Whether the i-th variable is bound to a ref expression whose
+         * reference never escapes the body, as decided by EscapeAnalysis.
+         */
+        public boolean isLocalCell(int i) {
+            if (_local_cells == null) {
+                boolean[] local_cells = new boolean[_names.size()];
+                for (int j = 0; j < local_cells.length; j++) {
+                    local_cells[j] = _value_exps.get(j) instanceof RefExp
+                            && EscapeAnalysis.isLocal(_names.get(j), _body);
+                }
+                _local_cells = local_cells;
+            }
+            return _local_cells[i];
+        }
+
+        /**
+         * The type of the body, once the Checker has found it.
+         */
+        public Type bodyType() {
+            return _body_type;
+        }
+
+        /**
+         * Whether the heap cells allocated while evaluating this expression
+         * can all be released when it is done, as decided by RegionAnalysis.
+         */
+        public boolean isRegion() {
+            if (_region == null) {
+                _region = RegionAnalysis.isRegion(this, _body_type);
+            }
+            return _region;
+        }
+
     }
 
-    class DefineDecl extends Exp {
+    final class DefineDecl extends Exp {
         private final String _name;
         private final Type _type; // added for TypeLang
         private final Exp _value_exp;
@@ -287,10 +414,13 @@ public interface AST {
 
     }
 
-    class LambdaExp extends Exp {
+    final class LambdaExp extends Exp {
         private final List<String> _formals;
         private final List<Type> _types; // added for TypeLang
         private final Exp _body;
+        private List<String> _free_vars = null;
+        Type _body_type = null;
+        private Boolean _region = null;
 
         public LambdaExp(List<String> formals, List<Type> types, Exp body) {
             _formals = formals;
@@ -310,14 +440,44 @@ public interface AST {
             return _body;
         }
 
+        /**
+         * The variables a closure of this lambda has to capture, computed
+         * the first time they are asked for.
+         */
+        public List<String> freeVariables() {
+            if (_free_vars == null) {
+                _free_vars = FreeVariables.of(this);
+            }
+            return _free_vars;
+        }
+
+        /**
+         * The type of the body, once the Checker has found it.
+         */
+        public Type bodyType() {
+            return _body_type;
+        }
+
+        /**
+         * Whether the heap cells allocated by a call of this function can
+         * all be released when it returns, as decided by RegionAnalysis.
+         */
+        public boolean isRegion() {
+            if (_region == null) {
+                _region = RegionAnalysis.isRegion(_body, _body_type);
+            }
+            return _region;
+        }
+
         public <V, T> V accept(Visitor<V, T> visitor, Env<T> env) {
             return visitor.visit(this, env);
         }
     }
 
-    class CallExp extends Exp {
+    final class CallExp extends Exp {
         private final Exp _operator;
         private final List<Exp> _operands;
+        InlineCache _inline_cache = null;
 
         public CallExp(Exp operator, List<Exp> operands) {
             _operator = operator;
@@ -337,7 +497,7 @@ public interface AST {
         }
     }
 
-    class IfExp extends Exp {
+    final class IfExp extends Exp {
         private final Exp _conditional;
         private final Exp _then_exp;
         private final Exp _else_exp;
@@ -365,7 +525,7 @@ public interface AST {
         }
     }
 
-    class LessExp extends BinaryComparator {
+    final class LessExp extends BinaryComparator {
         public LessExp(Exp first_exp, Exp second_exp) {
             super(first_exp, second_exp);
         }
@@ -375,7 +535,7 @@ public interface AST {
         }
     }
 
-    abstract class BinaryComparator extends Exp {
+    sealed abstract class BinaryComparator extends Exp {
         private final Exp _first_exp;
         private final Exp _second_exp;
 
@@ -393,7 +553,7 @@ public interface AST {
         }
     }
 
-    class EqualExp extends BinaryComparator {
+    final class EqualExp extends BinaryComparator {
         public EqualExp(Exp first_exp, Exp second_exp) {
             super(first_exp, second_exp);
         }
@@ -403,7 +563,7 @@ public interface AST {
         }
     }
 
-    class GreaterExp extends BinaryComparator {
+    final class GreaterExp extends BinaryComparator {
         public GreaterExp(Exp first_exp, Exp second_exp) {
             super(first_exp, second_exp);
         }
@@ -413,7 +573,7 @@ public interface AST {
         }
     }
 
-    class CarExp extends Exp {
+    final class CarExp extends Exp {
         private final Exp _arg;
 
         public CarExp(Exp arg) {
@@ -429,7 +589,7 @@ public interface AST {
         }
     }
 
-    class CdrExp extends Exp {
+    final class CdrExp extends Exp {
         private final Exp _arg;
 
         public CdrExp(Exp arg) {
@@ -445,7 +605,7 @@ public interface AST {
         }
     }
 
-    class ConsExp extends Exp {
+    final class ConsExp extends Exp {
         private final Exp _fst;
         private final Exp _snd;
 
@@ -467,7 +627,7 @@ public interface AST {
         }
     }
 
-    class ListExp extends Exp {
+    final class ListExp extends Exp {
         private final List<Exp> _elems;
         private final Type _type; // added for TypeLang
 
@@ -489,7 +649,7 @@ public interface AST {
         }
     }
 
-    class NullExp extends Exp {
+    final class NullExp extends Exp {
         private final Exp _arg;
 
         public NullExp(Exp arg) {
@@ -512,7 +672,7 @@ public interface AST {
      *
      * @author hridesh
      */
-    class RefExp extends Exp {
+    final class RefExp extends Exp {
         private final Exp _value_exp;
         private final Type _type; // added for TypeLang
 
@@ -542,7 +702,7 @@ public interface AST {
      *
      * @author hridesh
      */
-    class DerefExp extends Exp {
+    final class DerefExp extends Exp {
         private final Exp _loc_exp;
 
         public DerefExp(Exp loc_exp) {
@@ -566,9 +726,10 @@ public interface AST {
      *
      * @author hridesh
      */
-    class AssignExp extends Exp {
+    final class AssignExp extends Exp {
         private final Exp _lhs_exp;
         private final Exp _rhs_exp;
+        Type _stored_type = null;
 
         public AssignExp(Exp lhs_exp, Exp rhs_exp) {
             _lhs_exp = lhs_exp;
@@ -587,6 +748,14 @@ public interface AST {
             return _rhs_exp;
         }
 
+        /**
+         * The type of the values stored through the reference, once the
+         * Checker has found it.
+         */
+        public Type storedType() {
+            return _stored_type;
+        }
+
     }
 
     /**
@@ -596,7 +765,7 @@ public interface AST {
      *
      * @author hridesh
      */
-    class FreeExp extends Exp {
+    final class FreeExp extends Exp {
         private final Exp _value_exp;
 
         public FreeExp(Exp value_exp) {
@@ -5,23 +5,85 @@ import typelang.Type.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 public class Checker implements Visitor<Type, Type> {
+    static final int PARALLEL_THRESHOLD = 16;
+
     private final Printer.Formatter<Type> ts = new Printer.Formatter<>();
 
-    private Env<Type> globalEnv;
+    Env<Type> globalEnv;
+    private ForkJoinPool pool = null;
+    private List<ErrorT> errors = null;
 
     public Checker() {
         this.globalEnv = new Env.EmptyEnv<>();
     }
 
+    /**
+     * A new checker that starts out with this one's definitions. The type
+     * environment is immutable, so the two share it.
+     */
+    Checker fork() {
+        Checker child = new Checker();
+        child.globalEnv = globalEnv;
+        child.pool = pool;
+        return child;
+    }
+
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     private static boolean assignable(Type t1, Type t2) {
         if (t2 instanceof UnitT) {
             return true;
         } else {
-            return t1.typeEqual(t2);
+            return matches(t1, t2);
+        }
+    }
+
+    /**
+     * Like typeEqual, except that an UnknownT anywhere in the actual type
+     * matches the corresponding part of the expected type.
+     */
+    @SuppressWarnings("BooleanMethodIsAlwaysInverted")
+    private static boolean matches(Type expected, Type actual) {
+        if (actual instanceof UnknownT) {
+            return true;
+        }
+        if (expected instanceof FuncT ef && actual instanceof FuncT af) {
+            List<Type> expectedArgs = ef.argTypes();
+            List<Type> actualArgs = af.argTypes();
+            if (expectedArgs.size() != actualArgs.size()) {
+                return false;
+            }
+            for (int i = 0; i < expectedArgs.size(); i++) {
+                if (!matches(expectedArgs.get(i), actualArgs.get(i))) {
+                    return false;
+                }
+            }
+            return matches(ef.returnType(), af.returnType());
+        }
+        if (expected instanceof RefT er && actual instanceof RefT ar) {
+            return matches(er.nestType(), ar.nestType());
+        }
+        if (expected instanceof PairT ep && actual instanceof PairT ap
+                && !(expected instanceof ListT) && !(actual instanceof ListT)) {
+            return matches(ep.fst(), ap.fst()) && matches(ep.snd(), ap.snd());
+        }
+        return expected.typeEqual(actual);
+    }
+
+    /**
+     * Reports a type error. When collecting errors, the error is recorded and
+     * checking carries on with an UnknownT in place of the ill-typed expression.
+     */
+    private Type error(String message) {
+        ErrorT error = new ErrorT(message);
+        if (errors == null) {
+            return error;
         }
+        errors.add(error);
+        return UnknownT.getInstance();
     }
 
     public static void main(String[] args) {
@@ -63,12 +125,52 @@ public class Checker implements Visitor<Type, Type> {
 
     }
 
+    /**
+     * Checks the definitions of large programs in parallel on the given
+     * pool, or one after another when it is null.
+     */
+    void setParallelism(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Checks a program without stopping at the first error, and returns all
+     * the errors found in source order.
+     */
+    List<ErrorT> checkAll(Program p) {
+        errors = new ArrayList<>();
+        try {
+            check(p);
+            return errors;
+        } finally {
+            errors = null;
+        }
+    }
+
     Type check(Program p) {
-        return p.accept(this, globalEnv);
+        Events.Check event = new Events.Check();
+        event.begin();
+        Type type = null;
+        try {
+            type = p.accept(this, globalEnv);
+            return type;
+        } finally {
+            boolean failed = type == null || type instanceof ErrorT || errors != null && !errors.isEmpty();
+            p._checked = !failed;
+            event.end();
+            if (event.shouldCommit()) {
+                event.definitions = p.decls().size();
+                event.outcome = failed ? Events.ERROR : Events.OK;
+                event.commit();
+            }
+        }
     }
 
     @Override
     public Type visit(Program p, Env<Type> env) {
+        if (pool != null && p.decls().size() >= PARALLEL_THRESHOLD) {
+            return visitInParallel(p, env);
+        }
         Env<Type> new_env = env;
         for (DefineDecl d : p.decls()) {
             Type type = d.accept(this, new_env);
@@ -76,14 +178,78 @@ public class Checker implements Visitor<Type, Type> {
                 return type;
             }
             Type dType = d.type();
-            if (!type.typeEqual(dType)) {
-                return new ErrorT("Expected " + dType.toString() + " found " + type + " in " + ts.visit(d, null));
+            if (!matches(dType, type)) {
+                Type error = definitionMismatch(d, type);
+                if (error instanceof ErrorT) {
+                    return error;
+                }
             }
             new_env = new_env.extend(d.name(), dType);
         }
         return p.e().accept(this, new_env);
     }
 
+    /**
+     * Every definition declares its type, so the environment each body is
+     * checked in, holding its own and the earlier definitions' declared types
+     * as in the sequential case, can be built up front and the bodies checked
+     * independently. Errors are reported in source order, whichever task
+     * finds one first.
+     */
+    private Type visitInParallel(Program p, Env<Type> env) {
+        List<DefineDecl> decls = p.decls();
+        List<Env<Type>> signatures = new ArrayList<>(decls.size());
+        Env<Type> new_env = env;
+        for (DefineDecl d : decls) {
+            new_env = new_env.extend(d.name(), d.type());
+            signatures.add(new_env);
+        }
+
+        Checked[] results = pool.submit(() -> IntStream.range(0, decls.size()).parallel()
+                .mapToObj(i -> checkBody(decls.get(i), signatures.get(i)))
+                .toArray(Checked[]::new)).join();
+        for (int i = 0; i < results.length; i++) {
+            // definitions are published up to the first that fails, as they
+            // are when checked one after another
+            globalEnv = signatures.get(i);
+            if (errors != null) {
+                errors.addAll(results[i].errors());
+            }
+            Type type = results[i].type();
+            if (type instanceof ErrorT) {
+                return type;
+            }
+            DefineDecl d = decls.get(i);
+            if (!matches(d.type(), type)) {
+                Type error = definitionMismatch(d, type);
+                if (error instanceof ErrorT) {
+                    return error;
+                }
+            }
+        }
+        return p.e().accept(this, new_env);
+    }
+
+    private record Checked(Type type, List<ErrorT> errors) {
+    }
+
+    /**
+     * Checks a definition's body on a worker thread. Collected errors go to a
+     * list of the task's own, to be merged in source order afterwards.
+     */
+    private Checked checkBody(DefineDecl d, Env<Type> env) {
+        if (errors == null) {
+            return new Checked(d.value_exp().accept(this, env), List.of());
+        }
+        Checker worker = new Checker();
+        worker.errors = new ArrayList<>();
+        return new Checked(d.value_exp().accept(worker, env), worker.errors);
+    }
+
+    private Type definitionMismatch(DefineDecl d, Type found) {
+        return error("Expected " + d.type().toString() + " found " + found + " in " + ts.locate(d));
+    }
+
     @Override
     public Type visit(UnitExp e, Env<Type> env) {
         return Type.UnitT.getInstance();
@@ -99,7 +265,7 @@ public class Checker implements Visitor<Type, Type> {
         return Type.BoolT.getInstance();
     }
 
-    private Type visitCompoundArithExp(CompoundArithExp e, Env<Type> env, String printNode) {
+    private Type visitCompoundArithExp(CompoundArithExp e, Env<Type> env) {
         List<Exp> operands = e.all();
 
         for (Exp exp : operands) {
@@ -109,8 +275,8 @@ public class Checker implements Visitor<Type, Type> {
                 return intermediate;
             }
 
-            if (!(intermediate instanceof Type.NumT)) {
-                return new ErrorT("expected num found " + intermediate.toString() + " in " + printNode);
+            if (!(intermediate instanceof Type.NumT || intermediate instanceof UnknownT)) {
+                return error("expected num found " + intermediate.toString() + " in " + ts.locate(e));
             }
         }
 
@@ -119,22 +285,22 @@ public class Checker implements Visitor<Type, Type> {
 
     @Override
     public Type visit(AddExp e, Env<Type> env) {
-        return visitCompoundArithExp(e, env, ts.visit(e, null));
+        return visitCompoundArithExp(e, env);
     }
 
     @Override
     public Type visit(DivExp e, Env<Type> env) {
-        return visitCompoundArithExp(e, env, ts.visit(e, null));
+        return visitCompoundArithExp(e, env);
     }
 
     @Override
     public Type visit(MultExp e, Env<Type> env) {
-        return visitCompoundArithExp(e, env, ts.visit(e, null));
+        return visitCompoundArithExp(e, env);
     }
 
     @Override
     public Type visit(SubExp e, Env<Type> env) {
-        return visitCompoundArithExp(e, env, ts.visit(e, null));
+        return visitCompoundArithExp(e, env);
     }
 
     @Override
@@ -142,7 +308,7 @@ public class Checker implements Visitor<Type, Type> {
         try {
             return env.get(e.name());
         } catch (Exception ex) {
-            return new ErrorT("Variable " + e.name() + " has not been declared in " + ts.visit(e, null));
+            return error("Variable " + e.name() + " has not been declared in " + ts.locate(e));
         }
     }
 
@@ -161,11 +327,14 @@ public class Checker implements Visitor<Type, Type> {
             }
 
             Type argType = types.get(i);
-            if (!type.typeEqual(argType)) {
-                return new ErrorT("The declared type of the " + i + " let variable and the actual type mismatch, expect " + argType.toString() + " found " + type + " in " + ts.visit(e, null));
+            if (!matches(argType, type)) {
+                Type error = error("The declared type of the " + i + " let variable and the actual type mismatch, expect " + argType.toString() + " found " + type + " in " + ts.locate(e));
+                if (error instanceof ErrorT) {
+                    return error;
+                }
             }
 
-            values.add(type);
+            values.add(argType);
             i++;
         }
 
@@ -174,7 +343,9 @@ public class Checker implements Visitor<Type, Type> {
             new_env = new_env.extend(names.get(index), values.get(index));
         }
 
-        return e.body().accept(this, new_env);
+        Type bodyType = e.body().accept(this, new_env);
+        e._body_type = bodyType;
+        return bodyType;
     }
 
     @Override
@@ -203,6 +374,7 @@ public class Checker implements Visitor<Type, Type> {
             if (bodyType instanceof ErrorT) {
                 return bodyType;
             }
+            e._body_type = bodyType;
 
             //create a new function type with arguments, and the type of
             //the body as the return type. Notice, that the body type isn't
@@ -210,7 +382,7 @@ public class Checker implements Visitor<Type, Type> {
             return new FuncT(types, bodyType);
         }
 
-        return new ErrorT(message + ts.visit(e, null));
+        return error(message + ts.locate(e));
     }
 
     @Override
@@ -223,6 +395,14 @@ public class Checker implements Visitor<Type, Type> {
             return type;
         }
 
+        if (type instanceof UnknownT) {
+            // still look for errors in the arguments
+            for (Exp operand : operands) {
+                operand.accept(this, env);
+            }
+            return type;
+        }
+
         String message = "Expect a function type in the call expression, found " + type.toString() + " in ";
         if (type instanceof FuncT ft) {
 
@@ -241,13 +421,16 @@ public class Checker implements Visitor<Type, Type> {
                     }
 
                     if (!assignable(argTypes.get(i), operand_type)) {
-                        return new ErrorT("The expected type of the " + i + " argument is " + argTypes.get(i).toString() + " found " + operand_type.toString() + " in " + ts.visit(e, null));
+                        Type error = error("The expected type of the " + i + " argument is " + argTypes.get(i).toString() + " found " + operand_type.toString() + " in " + ts.locate(e));
+                        if (error instanceof ErrorT) {
+                            return error;
+                        }
                     }
                 }
                 return ft.returnType();
             }
         }
-        return new ErrorT(message + ts.visit(e, null));
+        return error(message + ts.locate(e));
     }
 
     @Override
@@ -258,8 +441,11 @@ public class Checker implements Visitor<Type, Type> {
             return condType;
         }
 
-        if (!(condType instanceof BoolT)) {
-            return new ErrorT("The condition should have boolean type, found " + condType.toString() + " in " + ts.visit(e, null));
+        if (!(condType instanceof BoolT || condType instanceof UnknownT)) {
+            Type error = error("The condition should have boolean type, found " + condType.toString() + " in " + ts.locate(e));
+            if (error instanceof ErrorT) {
+                return error;
+            }
         }
 
         Type thentype = e.then_exp().accept(this, env);
@@ -272,14 +458,17 @@ public class Checker implements Visitor<Type, Type> {
             return elsetype;
         }
 
-        if (thentype.typeEqual(elsetype)) {
+        if (matches(thentype, elsetype)) {
             return thentype;
         }
+        if (matches(elsetype, thentype)) {
+            return elsetype;
+        }
 
-        return new ErrorT("The then and else expressions should have the same " + "type, then has type " + thentype + " else has type " + elsetype.toString() + " in " + ts.visit(e, null));
+        return error("The then and else expressions should have the same " + "type, then has type " + thentype + " else has type " + elsetype.toString() + " in " + ts.locate(e));
     }
 
-    private Type visitBinaryComparator(BinaryComparator e, Env<Type> env, String printNode) {
+    private Type visitBinaryComparator(BinaryComparator e, Env<Type> env) {
         Exp first_exp = e.first_exp();
         Exp second_exp = e.second_exp();
 
@@ -293,12 +482,12 @@ public class Checker implements Visitor<Type, Type> {
             return second_type;
         }
 
-        if (!(first_type instanceof NumT)) {
-            return new ErrorT("The first argument of a binary expression " + "should be num Type, found " + first_type.toString() + " in " + printNode);
+        if (!(first_type instanceof NumT || first_type instanceof UnknownT)) {
+            return error("The first argument of a binary expression " + "should be num Type, found " + first_type.toString() + " in " + ts.locate(e));
         }
 
-        if (!(second_type instanceof NumT)) {
-            return new ErrorT("The second argument of a binary expression " + "should be num Type, found " + second_type.toString() + " in " + printNode);
+        if (!(second_type instanceof NumT || second_type instanceof UnknownT)) {
+            return error("The second argument of a binary expression " + "should be num Type, found " + second_type.toString() + " in " + ts.locate(e));
         }
 
         return BoolT.getInstance();
@@ -306,17 +495,17 @@ public class Checker implements Visitor<Type, Type> {
 
     @Override
     public Type visit(LessExp e, Env<Type> env) {
-        return visitBinaryComparator(e, env, ts.visit(e, null));
+        return visitBinaryComparator(e, env);
     }
 
     @Override
     public Type visit(EqualExp e, Env<Type> env) {
-        return visitBinaryComparator(e, env, ts.visit(e, null));
+        return visitBinaryComparator(e, env);
     }
 
     @Override
     public Type visit(GreaterExp e, Env<Type> env) {
-        return visitBinaryComparator(e, env, ts.visit(e, null));
+        return visitBinaryComparator(e, env);
     }
 
     @Override
@@ -330,8 +519,11 @@ public class Checker implements Visitor<Type, Type> {
         if (type instanceof PairT pt) {
             return pt.fst();
         }
+        if (type instanceof UnknownT) {
+            return type;
+        }
 
-        return new ErrorT("The car expect an expression of type Pair, found " + type.toString() + " in " + ts.visit(e, null));
+        return error("The car expect an expression of type Pair, found " + type.toString() + " in " + ts.locate(e));
     }
 
     @Override
@@ -345,8 +537,11 @@ public class Checker implements Visitor<Type, Type> {
         if (type instanceof PairT pt) {
             return pt.snd();
         }
+        if (type instanceof UnknownT) {
+            return type;
+        }
 
-        return new ErrorT("The cdr expect an expression of type Pair, found " + type.toString() + " in " + ts.visit(e, null));
+        return error("The cdr expect an expression of type Pair, found " + type.toString() + " in " + ts.locate(e));
     }
 
     @Override
@@ -380,7 +575,10 @@ public class Checker implements Visitor<Type, Type> {
             }
 
             if (!assignable(type, elemType)) {
-                return new ErrorT("The " + index + " expression should have type " + type.toString() + " found " + elemType.toString() + " in " + ts.visit(e, null));
+                Type error = error("The " + index + " expression should have type " + type.toString() + " found " + elemType.toString() + " in " + ts.locate(e));
+                if (error instanceof ErrorT) {
+                    return error;
+                }
             }
             index++;
         }
@@ -395,11 +593,11 @@ public class Checker implements Visitor<Type, Type> {
             return type;
         }
 
-        if (type instanceof ListT) {
+        if (type instanceof ListT || type instanceof UnknownT) {
             return BoolT.getInstance();
         }
 
-        return new ErrorT("The null? expects an expression of type List, found " + type.toString() + " in " + ts.visit(e, null));
+        return error("The null? expects an expression of type List, found " + type.toString() + " in " + ts.locate(e));
     }
 
     @Override
@@ -407,15 +605,15 @@ public class Checker implements Visitor<Type, Type> {
         Exp value = e.value_exp();
         Type type = e.type();
         Type expType = value.accept(this, env);
-        if (type instanceof ErrorT) {
-            return type;
+        if (expType instanceof ErrorT) {
+            return expType;
         }
 
-        if (expType.typeEqual(type)) {
+        if (matches(type, expType)) {
             return new RefT(type);
         }
 
-        return new ErrorT("The Ref expression expects type " + type.toString() + " found " + expType + " in " + ts.visit(e, null));
+        return error("The Ref expression expects type " + type.toString() + " found " + expType + " in " + ts.locate(e));
     }
 
     @Override
@@ -429,8 +627,11 @@ public class Checker implements Visitor<Type, Type> {
         if (type instanceof RefT rt) {
             return rt.nestType();
         }
+        if (type instanceof UnknownT) {
+            return type;
+        }
 
-        return new ErrorT("The dereference expression expects a reference type " + "found " + type.toString() + " in " + ts.visit(e, null));
+        return error("The dereference expression expects a reference type " + "found " + type.toString() + " in " + ts.locate(e));
     }
 
     @Override
@@ -441,6 +642,10 @@ public class Checker implements Visitor<Type, Type> {
             return lhsType;
         }
 
+        if (lhsType instanceof UnknownT) {
+            return e.rhs_exp().accept(this, env);
+        }
+
         if (lhsType instanceof RefT rt) {
             Exp rhs_exp = e.rhs_exp();
             Type rhsType = rhs_exp.accept(this, env);
@@ -450,14 +655,15 @@ public class Checker implements Visitor<Type, Type> {
 
             Type nested = rt.nestType();
 
-            if (rhsType.typeEqual(nested)) {
-                return rhsType;
+            if (matches(nested, rhsType)) {
+                e._stored_type = nested;
+                return nested;
             }
 
-            return new ErrorT("The inner type of the reference type is " + nested.toString() + " the rhs type is " + rhsType + " in " + ts.visit(e, null));
+            return error("The inner type of the reference type is " + nested.toString() + " the rhs type is " + rhsType + " in " + ts.locate(e));
         }
 
-        return new ErrorT("The lhs of the assignment expression expects a " + "reference type found " + lhsType.toString() + " in " + ts.visit(e, null));
+        return error("The lhs of the assignment expression expects a " + "reference type found " + lhsType.toString() + " in " + ts.locate(e));
     }
 
     @Override
@@ -469,10 +675,10 @@ public class Checker implements Visitor<Type, Type> {
             return type;
         }
 
-        if (type instanceof RefT) {
+        if (type instanceof RefT || type instanceof UnknownT) {
             return UnitT.getInstance();
         }
 
-        return new ErrorT("The free expression expects a reference type " + "found " + type.toString() + " in " + ts.visit(e, null));
+        return error("The free expression expects a reference type " + "found " + type.toString() + " in " + ts.locate(e));
     }
 }
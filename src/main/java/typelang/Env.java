@@ -1,5 +1,10 @@
 package typelang;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Representation of an environment, which maps variables to values.
  *
@@ -8,6 +13,24 @@ package typelang;
 public interface Env<T> {
     T get(String search_var);
 
+    /**
+     * Like get, but returns null instead of throwing when the variable is
+     * not bound.
+     */
+    T lookup(String search_var);
+
+    /**
+     * The bindings of this environment, outermost first, including the ones
+     * that are shadowed.
+     */
+    List<Map.Entry<String, T>> bindings();
+
+    /**
+     * Whether var is bound in this environment in front of suffix, the
+     * environment this one was built on by extending or appending to it.
+     */
+    boolean bindsBefore(String var, Env<T> suffix);
+
     default Env<T> extend(String var, T val) {
         return new ExtendEnv<>(this, var, val);
     }
@@ -15,7 +38,7 @@ public interface Env<T> {
     boolean isEmpty();
 
     class LookupException extends RuntimeException {
-        LookupException(String message) {
+        public LookupException(String message) {
             super(message);
         }
     }
@@ -28,6 +51,21 @@ public interface Env<T> {
             throw new LookupException("No binding found for name: " + search_var);
         }
 
+        @Override
+        public T lookup(String search_var) {
+            return null;
+        }
+
+        @Override
+        public List<Map.Entry<String, T>> bindings() {
+            return List.of();
+        }
+
+        @Override
+        public boolean bindsBefore(String var, Env<T> suffix) {
+            return false;
+        }
+
         @Override
         public boolean isEmpty() {
             return true;
@@ -48,6 +86,8 @@ public interface Env<T> {
         public static <T> Env<T> append(Env<T> fst, Env<T> snd) {
             if (fst.isEmpty()) {
                 return snd;
+            } else if (fst instanceof ArrayEnv<T> a) {
+                return new ArrayEnv<>(a._vars, a._vals, ExtendEnv.append(a._saved_env, snd));
             } else {
                 ExtendEnv<T> f = (ExtendEnv<T>) fst;
                 return new ExtendEnv<>(ExtendEnv.append(f._saved_env, snd), f._var, f._val);
@@ -55,13 +95,173 @@ public interface Env<T> {
         }
 
         @Override
-        public synchronized T get(String search_var) {
+        public T get(String search_var) {
             if (search_var.equals(_var)) {
                 return _val;
             }
             return _saved_env.get(search_var);
         }
 
+        @Override
+        public T lookup(String search_var) {
+            Env<T> env = this;
+            while (env instanceof ExtendEnv<T> e) {
+                if (search_var.equals(e._var)) {
+                    return e._val;
+                }
+                env = e._saved_env;
+            }
+            return env.lookup(search_var);
+        }
+
+        @Override
+        public List<Map.Entry<String, T>> bindings() {
+            List<Map.Entry<String, T>> inner = new ArrayList<>();
+            Env<T> env = this;
+            while (env instanceof ExtendEnv<T> e) {
+                inner.add(Map.entry(e._var, e._val));
+                env = e._saved_env;
+            }
+            List<Map.Entry<String, T>> result = new ArrayList<>(env.bindings());
+            result.addAll(inner.reversed());
+            return result;
+        }
+
+        @Override
+        public boolean bindsBefore(String var, Env<T> suffix) {
+            Env<T> env = this;
+            while (env != suffix && env instanceof ExtendEnv<T> e) {
+                if (var.equals(e._var)) {
+                    return true;
+                }
+                env = e._saved_env;
+            }
+            return env != suffix && env.bindsBefore(var, suffix);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+    }
+
+    /**
+     * The environment of a flat closure: copies of just the bindings its body
+     * uses, in an array, in front of the environment it is called in.
+     */
+    class ArrayEnv<T> implements Env<T> {
+        private final String[] _vars;
+        private final Object[] _vals;
+        private final Env<T> _saved_env;
+
+        private ArrayEnv(String[] vars, Object[] vals, Env<T> saved_env) {
+            _vars = vars;
+            _vals = vals;
+            _saved_env = saved_env;
+        }
+
+        /**
+         * Copies the bindings of the given variables out of env. Variables
+         * env does not bind are left out, to be found in the global
+         * environment when the closure is called.
+         */
+        public static <T> Env<T> capture(Env<T> env, List<String> vars) {
+            String[] names = new String[vars.size()];
+            Object[] vals = new Object[vars.size()];
+            int size = 0;
+            for (String var : vars) {
+                T val = env.lookup(var);
+                if (val != null) {
+                    names[size] = var;
+                    vals[size] = val;
+                    size++;
+                }
+            }
+            if (size == 0) {
+                return new EmptyEnv<>();
+            }
+            if (size < names.length) {
+                names = Arrays.copyOf(names, size);
+                vals = Arrays.copyOf(vals, size);
+            }
+            return new ArrayEnv<>(names, vals, new EmptyEnv<>());
+        }
+
+        /**
+         * Binds vars to vals in order. A null value leaves its variable
+         * unbound, so that the variables keep the positions compiled code
+         * refers to them by whether they are bound or not.
+         */
+        public static <T> Env<T> of(String[] vars, Object[] vals) {
+            if (vars.length == 0) {
+                return new EmptyEnv<>();
+            }
+            return new ArrayEnv<>(vars, vals, new EmptyEnv<>());
+        }
+
+        /**
+         * Whether this environment was made by of() with exactly the given
+         * array of variables, so that they are at the positions it gives them.
+         */
+        public boolean isOf(String[] vars) {
+            return _vars == vars;
+        }
+
+        /**
+         * The value of the i-th variable, or null if it is unbound.
+         */
+        @SuppressWarnings("unchecked")
+        public T value(int i) {
+            return (T) _vals[i];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(String search_var) {
+            for (int i = 0; i < _vars.length; i++) {
+                if (search_var.equals(_vars[i]) && _vals[i] != null) {
+                    return (T) _vals[i];
+                }
+            }
+            return _saved_env.get(search_var);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T lookup(String search_var) {
+            for (int i = 0; i < _vars.length; i++) {
+                if (search_var.equals(_vars[i]) && _vals[i] != null) {
+                    return (T) _vals[i];
+                }
+            }
+            return _saved_env.lookup(search_var);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<Map.Entry<String, T>> bindings() {
+            List<Map.Entry<String, T>> result = new ArrayList<>(_saved_env.bindings());
+            for (int i = 0; i < _vars.length; i++) {
+                if (_vals[i] != null) {
+                    result.add(Map.entry(_vars[i], (T) _vals[i]));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean bindsBefore(String var, Env<T> suffix) {
+            if (this == suffix) {
+                return false;
+            }
+            for (int i = 0; i < _vars.length; i++) {
+                if (var.equals(_vars[i]) && _vals[i] != null) {
+                    return true;
+                }
+            }
+            return _saved_env.bindsBefore(var, suffix);
+        }
+
         @Override
         public boolean isEmpty() {
             return false;
@@ -0,0 +1,178 @@
+package typelang;
+
+import typelang.AST.*;
+
+import java.util.List;
+
+/**
+ * This class decides whether a reference bound by a let can live in a local
+ * cell instead of the heap. That is the case when, within the let body, the
+ * variable only ever appears as the operand of a deref or as the left hand
+ * side of a set!, so the reference itself never flows anywhere else: not
+ * into a call, a data structure, a free, or the value of the let.
+ * <p>
+ * A closure in the body may still use the variable that way, and then shares
+ * the cell with the let.
+ */
+public class EscapeAnalysis implements Visitor<Boolean, Void> {
+    private final String var;
+
+    private EscapeAnalysis(String var) {
+        this.var = var;
+    }
+
+    /**
+     * Whether every use of var in body only reads or writes the reference.
+     */
+    public static boolean isLocal(String var, Exp body) {
+        return body.accept(new EscapeAnalysis(var), null);
+    }
+
+    private boolean all(List<Exp> es) {
+        for (Exp e : es) {
+            if (!e.accept(this, null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isVar(Exp e) {
+        return e instanceof VarExp v && v.name().equals(var);
+    }
+
+    @Override
+    public Boolean visit(VarExp e, Env<Void> env) {
+        return !e.name().equals(var);
+    }
+
+    @Override
+    public Boolean visit(DerefExp e, Env<Void> env) {
+        return isVar(e.loc_exp()) || e.loc_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(AssignExp e, Env<Void> env) {
+        return (isVar(e.lhs_exp()) || e.lhs_exp().accept(this, null)) && e.rhs_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(LetExp e, Env<Void> env) {
+        return all(e.value_exps()) && (e.names().contains(var) || e.body().accept(this, null));
+    }
+
+    @Override
+    public Boolean visit(LambdaExp e, Env<Void> env) {
+        return e.formals().contains(var) || e.body().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(AddExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(SubExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(MultExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(DivExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(UnitExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(NumExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(BoolExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(Program p, Env<Void> env) {
+        for (DefineDecl d : p.decls()) {
+            if (!d.accept(this, null)) {
+                return false;
+            }
+        }
+        return p.e().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(DefineDecl d, Env<Void> env) {
+        return d.value_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(CallExp e, Env<Void> env) {
+        return e.operator().accept(this, null) && all(e.operands());
+    }
+
+    @Override
+    public Boolean visit(IfExp e, Env<Void> env) {
+        return e.conditional().accept(this, null) && e.then_exp().accept(this, null) && e.else_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(LessExp e, Env<Void> env) {
+        return e.first_exp().accept(this, null) && e.second_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(EqualExp e, Env<Void> env) {
+        return e.first_exp().accept(this, null) && e.second_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(GreaterExp e, Env<Void> env) {
+        return e.first_exp().accept(this, null) && e.second_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(CarExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(CdrExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(ConsExp e, Env<Void> env) {
+        return e.fst().accept(this, null) && e.snd().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(ListExp e, Env<Void> env) {
+        return all(e.elems());
+    }
+
+    @Override
+    public Boolean visit(NullExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(RefExp e, Env<Void> env) {
+        return e.value_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(FreeExp e, Env<Void> env) {
+        return e.value_exp().accept(this, null);
+    }
+}
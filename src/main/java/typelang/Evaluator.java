@@ -2,8 +2,15 @@ package typelang;
 
 import typelang.Env.ExtendEnv;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import static typelang.AST.*;
 import static typelang.Value.NumVal;
@@ -13,11 +20,198 @@ public class Evaluator implements Visitor<Value, Value> {
 
     private final Printer.Formatter<Value> ts = new Printer.Formatter<>();
 
-    private Env<Value> globalEnv = new Env.EmptyEnv<>();
-    private final Heap heap = new Heap.Heap16Bit();
+    Env<Value> globalEnv = new Env.EmptyEnv<>();
+    final Heap heap;
+    Profiler profiler = null;
+    boolean regions = false;
+    // the inline caches made by this evaluator, for as long as their call sites are in use
+    final Set<InlineCache> callSites = Collections.newSetFromMap(new WeakHashMap<>());
+    // the last program run, whose call sites are kept for reporting even if nothing else uses them
+    private Program program = null;
+
+    public Evaluator() {
+        this(new Heap.Heap16Bit());
+    }
+
+    public Evaluator(Heap heap) {
+        this.heap = heap;
+    }
+
+    /**
+     * Turns on call profiling with the given profiler, or off when it is null.
+     */
+    void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Turns on releasing the heap cells of let expressions and calls that
+     * RegionAnalysis has shown can be released when they are done.
+     */
+    void setRegions(boolean regions) {
+        this.regions = regions;
+    }
+
+    public Heap heap() {
+        return heap;
+    }
+
+    /**
+     * The definitions of the session, which a VM running programs in its
+     * place reads and extends.
+     */
+    public Env<Value> globalEnv() {
+        return globalEnv;
+    }
+
+    public void setGlobalEnv(Env<Value> globalEnv) {
+        this.globalEnv = globalEnv;
+    }
+
+    Heap.MetricsMXBean heapMetrics() {
+        return heap.metrics();
+    }
+
+    /**
+     * A new evaluator of the same kind with a fork of this one's heap, which
+     * starts out with this one's definitions. The global environment is
+     * immutable and shared, except that closures in it that hold local cells
+     * get copies of the cells, so that neither evaluator sees the other's
+     * assignments. Closures stored in heap cells still share theirs.
+     */
+    Evaluator fork() {
+        Evaluator child = create(heap.fork());
+        CellCopier copier = new CellCopier();
+        child.globalEnv = copier.env(globalEnv);
+        copier.finish();
+        child.regions = regions;
+        child.profiler = profiler;
+        return child;
+    }
+
+    /**
+     * The environment operator's body runs in when it is called from e,
+     * before its formals are bound, or null if it does not take as many
+     * arguments as e passes. The inline cache of e keeps it for next time.
+     * A cache belongs to the evaluator that made it, so a fork running the
+     * same code makes caches of its own.
+     */
+    Env<Value> entry(CallExp e, Value.FunVal operator) {
+        InlineCache cache = e._inline_cache;
+        if (cache == null || cache.owner != this) {
+            cache = e._inline_cache = new InlineCache(e, this);
+            callSites.add(cache);
+        }
+        Env<Value> base = cache.lookup(operator, globalEnv);
+        if (base == null) {
+            if (operator.formals().size() != e.operands().size()) {
+                return null;
+            }
+            base = ExtendEnv.append(operator.env(), globalEnv);
+            cache.add(operator, globalEnv, base);
+        }
+        return base;
+    }
+
+    /**
+     * A new evaluator of the same kind as this one, using the given heap.
+     */
+    Evaluator create(Heap heap) {
+        return new Evaluator(heap);
+    }
+
+    /**
+     * Copies values that can reach a local cell, sharing everything else.
+     */
+    private static class CellCopier {
+        private final Map<Value, Value> copies = new IdentityHashMap<>();
+        // cells whose copies have yet to be filled in, which breaks cycles through closures
+        private final Deque<Value.CellVal> cells = new ArrayDeque<>();
+
+        Env<Value> env(Env<Value> env) {
+            List<Map.Entry<String, Value>> bindings = env.bindings();
+            List<Value> values = new ArrayList<>(bindings.size());
+            boolean copied = false;
+            for (Map.Entry<String, Value> binding : bindings) {
+                Value value = value(binding.getValue());
+                copied |= value != binding.getValue();
+                values.add(value);
+            }
+            if (!copied) {
+                return env;
+            }
+            Env<Value> result = new Env.EmptyEnv<>();
+            for (int i = 0; i < bindings.size(); i++) {
+                result = result.extend(bindings.get(i).getKey(), values.get(i));
+            }
+            return result;
+        }
+
+        Value value(Value v) {
+            Value copy = copies.get(v);
+            if (copy != null) {
+                return copy;
+            }
+            copy = switch (v) {
+                case Value.CellVal cell -> {
+                    cells.add(cell);
+                    yield new Value.CellVal(null);
+                }
+                case Value.FunVal f -> {
+                    Env<Value> env = env(f.env());
+                    if (env == f.env()) {
+                        yield f;
+                    }
+                    List<String> names = env.bindings().stream().map(Map.Entry::getKey).toList();
+                    yield new Value.FunVal(Env.ArrayEnv.capture(env, names), f.formals(), f.body(), f.region());
+                }
+                case Value.ValueListVal list -> {
+                    Value[] elems = new Value[list.length()];
+                    boolean copied = false;
+                    for (int i = 0; i < elems.length; i++) {
+                        elems[i] = value(list.get(i));
+                        copied |= elems[i] != list.get(i);
+                    }
+                    yield copied ? new Value.ValueListVal(elems, 0) : list;
+                }
+                case Value.ListVal list -> list;
+                case Value.PairVal pair -> {
+                    Value fst = value(pair.fst());
+                    Value snd = value(pair.snd());
+                    yield fst == pair.fst() && snd == pair.snd() ? pair : new Value.PairVal(fst, snd);
+                }
+                default -> v;
+            };
+            if (v instanceof Value.PairVal || v instanceof Value.FunVal || v instanceof Value.CellVal) {
+                copies.put(v, copy);
+            }
+            return copy;
+        }
+
+        void finish() {
+            while (!cells.isEmpty()) {
+                Value.CellVal cell = cells.poll();
+                ((Value.CellVal) copies.get(cell)).set(value(cell.value()));
+            }
+        }
+    }
 
     Value valueOf(Program p) {
-        return p.accept(this, globalEnv);
+        Events.Evaluate event = new Events.Evaluate();
+        event.begin();
+        Value value = null;
+        program = p;
+        try {
+            value = p.accept(this, globalEnv);
+            return value;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.definitions = p.decls().size();
+                event.outcome = value == null || value instanceof Value.DynamicError ? Events.ERROR : Events.OK;
+                event.commit();
+            }
+        }
     }
 
     @Override
@@ -100,12 +294,29 @@ public class Evaluator implements Visitor<Value, Value> {
 
     @Override
     public Value visit(LetExp e, Env<Value> env) { // New for varlang.
+        if (!regions || !e.isRegion()) {
+            return letValue(e, env);
+        }
+        int mark = heap.mark();
+        try {
+            return letValue(e, env);
+        } finally {
+            heap.release(mark);
+        }
+    }
+
+    private Value letValue(LetExp e, Env<Value> env) {
         List<String> names = e.names();
         List<Exp> value_exps = e.value_exps();
         List<Value> values = new ArrayList<>(value_exps.size());
 
-        for (Exp exp : value_exps) {
-            values.add(exp.accept(this, env));
+        for (int i = 0; i < value_exps.size(); i++) {
+            if (e.isLocalCell(i)) {
+                RefExp ref = (RefExp) value_exps.get(i);
+                values.add(new Value.CellVal(ref.value_exp().accept(this, env)));
+            } else {
+                values.add(value_exps.get(i).accept(this, env));
+            }
         }
 
         Env<Value> new_env = env;
@@ -121,6 +332,9 @@ public class Evaluator implements Visitor<Value, Value> {
         String name = e.name();
         Exp value_exp = e.value_exp();
         Value value = value_exp.accept(this, env);
+        if (profiler != null && value instanceof Value.FunVal f) {
+            profiler.name(f, name);
+        }
         globalEnv = globalEnv.extend(name, value);
         return new Value.UnitVal();
     }
@@ -131,14 +345,14 @@ public class Evaluator implements Visitor<Value, Value> {
         //  1. formal parameters of the function - e.formals()
         //  2. actual body of the function - e.body()
         //  3. mapping from the free variables in the function body to their values.
-        return new Value.FunVal(env, e.formals(), e.body());
+        return new Value.FunVal(Env.ArrayEnv.capture(env, e.freeVariables()), e.formals(), e.body(), regions && e.isRegion());
     }
 
     @Override
     public Value visit(CallExp e, Env<Value> env) {
         Value result = e.operator().accept(this, env);
         if (!(result instanceof Value.FunVal operator)) {
-            return new Value.DynamicError("Operator not a function in call " + ts.visit(e, null));
+            return new Value.DynamicError("Operator not a function in call " + ts.locate(e));
         }
         // Dynamic checking
         List<Exp> operands = e.operands();
@@ -149,25 +363,36 @@ public class Evaluator implements Visitor<Value, Value> {
             actuals.add(exp.accept(this, env));
         }
 
-        List<String> formals = operator.formals();
-        if (formals.size() != actuals.size()) {
-            return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, null));
+        Env<Value> fun_env = entry(e, operator);
+        if (fun_env == null) {
+            return new Value.DynamicError("Argument mismatch in call " + ts.locate(e));
         }
-
-        Env<Value> closure_env = operator.env();
-        Env<Value> fun_env = ExtendEnv.append(closure_env, globalEnv);
+        List<String> formals = operator.formals();
         for (int index = 0; index < formals.size(); index++) {
             fun_env = fun_env.extend(formals.get(index), actuals.get(index));
         }
 
-        return operator.body().accept(this, fun_env);
+        int mark = operator.region() ? heap.mark() : -1;
+        if (profiler != null) {
+            profiler.enter(operator);
+        }
+        try {
+            return operator.body().accept(this, fun_env);
+        } finally {
+            if (profiler != null) {
+                profiler.exit();
+            }
+            if (mark >= 0) {
+                heap.release(mark);
+            }
+        }
     }
 
     @Override
     public Value visit(IfExp e, Env<Value> env) {
         Object result = e.conditional().accept(this, env);
         if (!(result instanceof Value.BoolVal condition)) {
-            return new Value.DynamicError("Condition not a boolean in expression " + ts.visit(e, env));
+            return new Value.DynamicError("Condition not a boolean in expression " + ts.locate(e));
         }
         //Dynamic checking
         if (condition.v()) {
@@ -230,12 +455,7 @@ public class Evaluator implements Visitor<Value, Value> {
         for (int i = 0; i < length; i++) {
             elems[i] = elemExps.get(i).accept(this, env);
         }
-
-        Value result = new Value.Null();
-        for (int i = length - 1; i >= 0; i--) {
-            result = new Value.PairVal(elems[i], result);
-        }
-        return result;
+        return Value.ListVal.of(e.type(), elems);
     }
 
     @Override
@@ -257,15 +477,21 @@ public class Evaluator implements Visitor<Value, Value> {
         Exp lhs = e.lhs_exp();
         //Note the order of evaluation below.
         Value rhs_val = rhs.accept(this, env);
-        Value.RefVal loc = (Value.RefVal) lhs.accept(this, env);
-        return heap.setref(loc, rhs_val);
+        Value loc = lhs.accept(this, env);
+        if (loc instanceof Value.CellVal cell) {
+            return cell.set(rhs_val);
+        }
+        return heap.setref((Value.RefVal) loc, rhs_val);
     }
 
     @Override
     public Value visit(DerefExp e, Env<Value> env) {
         Exp loc_exp = e.loc_exp();
-        Value.RefVal loc = (Value.RefVal) loc_exp.accept(this, env);
-        return heap.deref(loc);
+        Value loc = loc_exp.accept(this, env);
+        if (loc instanceof Value.CellVal cell) {
+            return cell.value();
+        }
+        return heap.deref((Value.RefVal) loc);
     }
 
     @Override
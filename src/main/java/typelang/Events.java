@@ -0,0 +1,99 @@
+package typelang;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the phases of the interpreter, so a
+ * recording shows parsing, type checking and evaluation next to GC and CPU
+ * activity.
+ * <p>
+ * Callers fill in an event's fields only after shouldCommit() returns true,
+ * which keeps the cost of a disabled event to an allocation the JIT removes.
+ */
+public interface Events {
+    String OK = "ok";
+    String ERROR = "error";
+    String CACHED = "cached";
+
+    @Name("typelang.Parse")
+    @Label("Parse")
+    @Category("TypeLang")
+    @Description("Parsing a program into an abstract syntax tree")
+    @StackTrace(false)
+    class Parse extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Characters")
+        @Description("Code points parsed, 0 when the program was read from the cache")
+        long characters;
+
+        @Label("File Size")
+        @Description("Size of the source file, 0 when the program was not read from one")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+
+        @Label("Definitions")
+        int definitions;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("typelang.Check")
+    @Label("Type Check")
+    @Category("TypeLang")
+    @Description("Type checking a program")
+    @StackTrace(false)
+    class Check extends Event {
+        @Label("Definitions")
+        int definitions;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("typelang.Evaluate")
+    @Label("Evaluate")
+    @Category("TypeLang")
+    @Description("Evaluating a program")
+    @StackTrace(false)
+    class Evaluate extends Event {
+        @Label("Definitions")
+        int definitions;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("typelang.HeapAllocationBurst")
+    @Label("Heap Allocation Burst")
+    @Category({"TypeLang", "Heap"})
+    @Description("A fixed number of heap cells allocated; the duration is the time it took to allocate them")
+    @StackTrace(false)
+    class HeapAllocationBurst extends Event {
+        @Label("Cells")
+        int cells;
+
+        @Label("High Water Mark")
+        int highWater;
+
+        @Label("Capacity")
+        int capacity;
+    }
+
+    @Name("typelang.HeapExhausted")
+    @Label("Heap Exhausted")
+    @Category({"TypeLang", "Heap"})
+    @Description("A ref expression failed because the heap has no free cells")
+    class HeapExhausted extends Event {
+        @Label("Capacity")
+        int capacity;
+    }
+}
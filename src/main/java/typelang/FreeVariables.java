@@ -0,0 +1,207 @@
+package typelang;
+
+import typelang.AST.*;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class finds the free variables of a lambda expression: the names its
+ * body refers to that are not bound by its formals or by a let or lambda
+ * inside it. They are the only variables a closure needs to capture.
+ */
+public class FreeVariables implements Visitor<Void, Void> {
+    private final Map<String, Integer> bound = new HashMap<>();
+    private final Set<String> free = new LinkedHashSet<>();
+
+    private FreeVariables() {
+    }
+
+    /**
+     * The free variables of a lambda expression, in order of first use.
+     */
+    public static List<String> of(LambdaExp e) {
+        return of(e.formals(), e.body());
+    }
+
+    /**
+     * The free variables of a function with the given formals and body, as
+     * of a function value, in order of first use.
+     */
+    public static List<String> of(List<String> formals, Exp body) {
+        FreeVariables fv = new FreeVariables();
+        fv.bind(formals);
+        body.accept(fv, null);
+        return List.copyOf(fv.free);
+    }
+
+    private void bind(List<String> names) {
+        for (String name : names) {
+            bound.merge(name, 1, Integer::sum);
+        }
+    }
+
+    private void unbind(List<String> names) {
+        for (String name : names) {
+            bound.computeIfPresent(name, (n, count) -> count == 1 ? null : count - 1);
+        }
+    }
+
+    private Void all(List<Exp> es) {
+        for (Exp e : es) {
+            e.accept(this, null);
+        }
+        return null;
+    }
+
+    private Void all(Exp... es) {
+        return all(List.of(es));
+    }
+
+    @Override
+    public Void visit(VarExp e, Env<Void> env) {
+        if (!bound.containsKey(e.name())) {
+            free.add(e.name());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(LetExp e, Env<Void> env) {
+        all(e.value_exps());
+        bind(e.names());
+        e.body().accept(this, null);
+        unbind(e.names());
+        return null;
+    }
+
+    @Override
+    public Void visit(LambdaExp e, Env<Void> env) {
+        bind(e.formals());
+        e.body().accept(this, null);
+        unbind(e.formals());
+        return null;
+    }
+
+    @Override
+    public Void visit(AddExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Void visit(SubExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Void visit(MultExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Void visit(DivExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Void visit(UnitExp e, Env<Void> env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(NumExp e, Env<Void> env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(BoolExp e, Env<Void> env) {
+        return null;
+    }
+
+    @Override
+    public Void visit(Program p, Env<Void> env) {
+        for (DefineDecl d : p.decls()) {
+            d.accept(this, null);
+        }
+        return p.e().accept(this, null);
+    }
+
+    @Override
+    public Void visit(DefineDecl d, Env<Void> env) {
+        return d.value_exp().accept(this, null);
+    }
+
+    @Override
+    public Void visit(CallExp e, Env<Void> env) {
+        e.operator().accept(this, null);
+        return all(e.operands());
+    }
+
+    @Override
+    public Void visit(IfExp e, Env<Void> env) {
+        return all(e.conditional(), e.then_exp(), e.else_exp());
+    }
+
+    @Override
+    public Void visit(LessExp e, Env<Void> env) {
+        return all(e.first_exp(), e.second_exp());
+    }
+
+    @Override
+    public Void visit(EqualExp e, Env<Void> env) {
+        return all(e.first_exp(), e.second_exp());
+    }
+
+    @Override
+    public Void visit(GreaterExp e, Env<Void> env) {
+        return all(e.first_exp(), e.second_exp());
+    }
+
+    @Override
+    public Void visit(CarExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Void visit(CdrExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Void visit(ConsExp e, Env<Void> env) {
+        return all(e.fst(), e.snd());
+    }
+
+    @Override
+    public Void visit(ListExp e, Env<Void> env) {
+        return all(e.elems());
+    }
+
+    @Override
+    public Void visit(NullExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Void visit(RefExp e, Env<Void> env) {
+        return e.value_exp().accept(this, null);
+    }
+
+    @Override
+    public Void visit(AssignExp e, Env<Void> env) {
+        return all(e.lhs_exp(), e.rhs_exp());
+    }
+
+    @Override
+    public Void visit(DerefExp e, Env<Void> env) {
+        return e.loc_exp().accept(this, null);
+    }
+
+    @Override
+    public Void visit(FreeExp e, Env<Void> env) {
+        return e.value_exp().accept(this, null);
+    }
+}
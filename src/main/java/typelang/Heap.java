@@ -1,5 +1,7 @@
 package typelang;
 
+import java.util.Arrays;
+
 /**
  * Representation of a heap, which maps references to values.
  *
@@ -15,22 +17,132 @@ public interface Heap {
 
     Value free(Value.RefVal value);
 
+    /**
+     * Starts a region, and returns the token that releases it. Every cell
+     * allocated until then must be unreachable by the time it is released.
+     */
+    default int mark() {
+        return 0;
+    }
+
+    /**
+     * Releases all the cells allocated since the matching mark. Regions are
+     * released innermost first. A heap that cannot release cells in bulk
+     * leaves them to be freed one at a time.
+     */
+    default void release(int mark) {
+    }
+
+    /**
+     * Writes the heap's cells to durable storage, if it has any.
+     */
+    default void flush() {
+    }
+
+    /**
+     * A copy of this heap, which from then on changes independently of it.
+     * A heap must not be forked while a region is open.
+     */
+    Heap fork();
+
+    MetricsMXBean metrics();
+
+    /**
+     * Occupancy and traffic counters of a heap, readable over JMX.
+     */
+    interface MetricsMXBean {
+        int getCapacity();
+
+        int getLiveCells();
+
+        int getFreedCells();
+
+        int getHighWaterMark();
+
+        long getAllocations();
+
+        long getFrees();
+
+        long getDerefs();
+
+        long getSetrefs();
+
+        /**
+         * Number of cells reclaimed by releasing regions.
+         */
+        long getReleasedCells();
+
+        /**
+         * Average number of cells allocated per second since the heap was created.
+         */
+        double getAllocationRate();
+    }
+
     class Heap16Bit implements Heap {
         static final int HEAP_SIZE = 65_536;
+        static final int BURST_SIZE = 4_096;
 
         Value[] _rep = new Value[HEAP_SIZE];
         int index = 0;
+        // cells from index up to here were released without being cleared
+        private int dirty = 0;
+        private Events.HeapAllocationBurst burst = null;
+        private int burstCells = 0;
+
+        private final long created = System.nanoTime();
+        private int freedCells = 0;
+        private long frees = 0;
+        private long derefs = 0;
+        private long setrefs = 0;
+        private long releasedCells = 0;
+        private long allocations = 0;
+        private int highWater = 0;
+
+        // the start of each open region, and how many of its cells were freed one at a time
+        private int[] marks = new int[16];
+        private int[] markFreed = new int[16];
+        private int depth = 0;
 
         public Value ref(Value value) {
-            if (index >= HEAP_SIZE) return new Value.DynamicError("Out of memory error");
+            if (index >= HEAP_SIZE) {
+                Events.HeapExhausted event = new Events.HeapExhausted();
+                if (event.shouldCommit()) {
+                    event.capacity = HEAP_SIZE;
+                    event.commit();
+                }
+                return new Value.DynamicError("Out of memory error");
+            }
+            if (burst == null) {
+                burst = new Events.HeapAllocationBurst();
+                burst.begin();
+            }
             Value.RefVal new_loc = new Value.RefVal(index);
             _rep[index++] = value;
+            if (index > dirty) {
+                dirty = index;
+            }
+            allocations++;
+            if (index > highWater) {
+                highWater = index;
+            }
+            if (++burstCells == BURST_SIZE) {
+                burst.end();
+                if (burst.shouldCommit()) {
+                    burst.cells = burstCells;
+                    burst.highWater = highWater;
+                    burst.capacity = HEAP_SIZE;
+                    burst.commit();
+                }
+                burst = null;
+                burstCells = 0;
+            }
             return new_loc;
         }
 
         public Value deref(Value.RefVal loc) {
+            derefs++;
             try {
-                if (_rep[loc.loc()] == null) return new Value.DynamicError("Null pointer at " + loc);
+                if (released(loc) || _rep[loc.loc()] == null) return new Value.DynamicError("Null pointer at " + loc);
                 return _rep[loc.loc()];
             } catch (ArrayIndexOutOfBoundsException e) {
                 return new Value.DynamicError("Segmentation fault at access " + loc);
@@ -38,8 +150,9 @@ public interface Heap {
         }
 
         public Value setref(Value.RefVal loc, Value value) {
+            setrefs++;
             try {
-                if (_rep[loc.loc()] == null) return new Value.DynamicError("Null pointer at " + loc);
+                if (released(loc) || _rep[loc.loc()] == null) return new Value.DynamicError("Null pointer at " + loc);
                 return _rep[loc.loc()] = value;
             } catch (ArrayIndexOutOfBoundsException e) {
                 return new Value.DynamicError("Segmentation fault at access " + loc);
@@ -47,7 +160,21 @@ public interface Heap {
         }
 
         public Value free(Value.RefVal loc) {
+            frees++;
             try {
+                if (released(loc)) {
+                    return loc;
+                }
+                if (_rep[loc.loc()] != null) {
+                    freedCells++;
+                    int region = depth - 1;
+                    while (region >= 0 && marks[region] > loc.loc()) {
+                        region--;
+                    }
+                    if (region >= 0) {
+                        markFreed[region]++;
+                    }
+                }
                 _rep[loc.loc()] = null;
                 return loc;
             } catch (ArrayIndexOutOfBoundsException e) {
@@ -57,6 +184,642 @@ public interface Heap {
 
         public Heap16Bit() {
         }
+
+        public Heap16Bit fork() {
+            Heap16Bit child = new Heap16Bit();
+            child.restore(Arrays.copyOf(_rep, index));
+            return child;
+        }
+
+        private boolean released(Value.RefVal loc) {
+            return loc.loc() >= index && loc.loc() < HEAP_SIZE;
+        }
+
+        /**
+         * Replaces the contents of the heap with the given cells, null for a
+         * freed one, as saved by an Image.
+         */
+        void restore(Value[] cells) {
+            Arrays.fill(_rep, 0, dirty, null);
+            System.arraycopy(cells, 0, _rep, 0, cells.length);
+            index = cells.length;
+            dirty = index;
+            depth = 0;
+            freedCells = 0;
+            for (Value cell : cells) {
+                if (cell == null) {
+                    freedCells++;
+                }
+            }
+            highWater = Math.max(highWater, index);
+        }
+
+        /**
+         * Cells are allocated by bumping an index, so a region is released in
+         * constant time by moving the index back to where the region started.
+         * Cells above the index read as freed. Their stale values are dropped
+         * when the outermost region is released, clearing each cell at most
+         * once however deeply the regions that allocated it were nested.
+         */
+        public int mark() {
+            if (depth == marks.length) {
+                marks = Arrays.copyOf(marks, depth * 2);
+                markFreed = Arrays.copyOf(markFreed, depth * 2);
+            }
+            marks[depth] = index;
+            markFreed[depth] = 0;
+            depth++;
+            return index;
+        }
+
+        public void release(int mark) {
+            depth--;
+            freedCells -= markFreed[depth];
+            releasedCells += index - mark;
+            index = mark;
+            if (depth == 0) {
+                Arrays.fill(_rep, index, dirty, null);
+                dirty = index;
+            }
+        }
+
+        public MetricsMXBean metrics() {
+            return new Metrics();
+        }
+
+        private class Metrics implements MetricsMXBean {
+            public int getCapacity() {
+                return HEAP_SIZE;
+            }
+
+            public int getLiveCells() {
+                return index - freedCells;
+            }
+
+            public int getFreedCells() {
+                return freedCells;
+            }
+
+            public int getHighWaterMark() {
+                return highWater;
+            }
+
+            public long getAllocations() {
+                return allocations;
+            }
+
+            public long getFrees() {
+                return frees;
+            }
+
+            public long getDerefs() {
+                return derefs;
+            }
+
+            public long getSetrefs() {
+                return setrefs;
+            }
+
+            public long getReleasedCells() {
+                return releasedCells;
+            }
+
+            public double getAllocationRate() {
+                double seconds = (System.nanoTime() - created) / 1e9;
+                return seconds > 0 ? allocations / seconds : 0;
+            }
+        }
+    }
+
+    /**
+     * Counters of a Generational heap on top of those of every heap.
+     */
+    interface GenerationalMXBean extends MetricsMXBean {
+        int getNurserySize();
+
+        long getPromotions();
+
+        long getMinorCollections();
+
+        long getCompactions();
+
+        /**
+         * Total time spent compacting the old space, in milliseconds.
+         */
+        double getCompactionTime();
+    }
+
+    /**
+     * A heap with two generations. New cells are allocated in a small
+     * nursery; when it fills up, the cells that have not been freed are
+     * promoted to the old space, and when the old space fills up it is
+     * compacted by sliding its live cells together.
+     * <p>
+     * Cells move, so a RefVal holds a handle instead of an address. The
+     * handle table maps a handle to the cell's current slot, and a freed
+     * handle is reused with its generation count bumped, so a dangling
+     * reference is still reported instead of reading some other cell.
+     */
+    class Generational implements Heap {
+        static final int DEFAULT_NURSERY_SIZE = 4_096;
+        static final int DEFAULT_OLD_SIZE = 65_536;
+        static final int MAX_NURSERY_SIZE = (1 << 20) - DEFAULT_OLD_SIZE;
+
+        private static final int HANDLE_BITS = 20;
+        private static final int HANDLE_MASK = (1 << HANDLE_BITS) - 1;
+        private static final int GENERATION_MASK = (1 << (31 - HANDLE_BITS)) - 1;
+        private static final int FREE = Integer.MIN_VALUE;
+
+        private final Value[] nursery;
+        private final int[] nurseryOwner;
+        private int nurseryTop = 0;
+
+        private final Value[] old;
+        private final int[] oldOwner;
+        private int oldTop = 0;
+
+        // per handle: its nursery slot, the complement of its old space slot, or FREE
+        private final int[] location;
+        private final int[] generation;
+        private final int[] freeHandles;
+        private int freeCount = 0;
+        private int handleTop = 0;
+
+        private final long created = System.nanoTime();
+        private int live = 0;
+        private int highWater = 0;
+        private int freedCells = 0;
+        private long allocations = 0;
+        private long frees = 0;
+        private long derefs = 0;
+        private long setrefs = 0;
+        private long promotions = 0;
+        private long minorCollections = 0;
+        private long compactions = 0;
+        private long compactionNanos = 0;
+
+        public Generational() {
+            this(DEFAULT_NURSERY_SIZE, DEFAULT_OLD_SIZE);
+        }
+
+        public Generational(int nurserySize, int oldSize) {
+            if (nurserySize <= 0 || oldSize <= 0 || nurserySize + oldSize > HANDLE_MASK + 1) {
+                throw new IllegalArgumentException("Invalid generation sizes " + nurserySize + " and " + oldSize);
+            }
+            nursery = new Value[nurserySize];
+            nurseryOwner = new int[nurserySize];
+            old = new Value[oldSize];
+            oldOwner = new int[oldSize];
+            location = new int[nurserySize + oldSize];
+            generation = new int[nurserySize + oldSize];
+            freeHandles = new int[nurserySize + oldSize];
+        }
+
+        private Generational(Generational parent) {
+            nursery = parent.nursery.clone();
+            nurseryOwner = parent.nurseryOwner.clone();
+            nurseryTop = parent.nurseryTop;
+            old = parent.old.clone();
+            oldOwner = parent.oldOwner.clone();
+            oldTop = parent.oldTop;
+            location = parent.location.clone();
+            generation = parent.generation.clone();
+            freeHandles = parent.freeHandles.clone();
+            freeCount = parent.freeCount;
+            handleTop = parent.handleTop;
+            live = parent.live;
+            highWater = parent.highWater;
+            freedCells = parent.freedCells;
+        }
+
+        /**
+         * Copies both generations, so cells keep their handles and slots.
+         */
+        public Generational fork() {
+            return new Generational(this);
+        }
+
+        public Value ref(Value value) {
+            if (live == location.length) {
+                return new Value.DynamicError("Out of memory error");
+            }
+            int handle;
+            if (nurseryTop < nursery.length || collectNursery()) {
+                handle = freeCount > 0 ? freeHandles[--freeCount] : handleTop++;
+                nursery[nurseryTop] = value;
+                nurseryOwner[nurseryTop] = handle;
+                location[handle] = nurseryTop++;
+            } else if (oldTop < old.length) {
+                // the nursery's survivors do not fit, but this one cell does
+                handle = freeCount > 0 ? freeHandles[--freeCount] : handleTop++;
+                old[oldTop] = value;
+                oldOwner[oldTop] = handle;
+                location[handle] = ~oldTop++;
+            } else {
+                return new Value.DynamicError("Out of memory error");
+            }
+            allocations++;
+            if (++live > highWater) {
+                highWater = live;
+            }
+            return new Value.RefVal(generation[handle] << HANDLE_BITS | handle);
+        }
+
+        public Value deref(Value.RefVal loc) {
+            derefs++;
+            int handle = loc.loc() & HANDLE_MASK;
+            if (handle >= handleTop) {
+                return new Value.DynamicError("Segmentation fault at access " + loc);
+            }
+            if (!isLive(loc, handle)) {
+                return new Value.DynamicError("Null pointer at " + loc);
+            }
+            int slot = location[handle];
+            return slot >= 0 ? nursery[slot] : old[~slot];
+        }
+
+        public Value setref(Value.RefVal loc, Value value) {
+            setrefs++;
+            int handle = loc.loc() & HANDLE_MASK;
+            if (handle >= handleTop) {
+                return new Value.DynamicError("Segmentation fault at access " + loc);
+            }
+            if (!isLive(loc, handle)) {
+                return new Value.DynamicError("Null pointer at " + loc);
+            }
+            int slot = location[handle];
+            if (slot >= 0) {
+                return nursery[slot] = value;
+            }
+            return old[~slot] = value;
+        }
+
+        public Value free(Value.RefVal loc) {
+            frees++;
+            int handle = loc.loc() & HANDLE_MASK;
+            if (handle >= handleTop) {
+                return new Value.DynamicError("Segmentation fault at access " + loc);
+            }
+            if (isLive(loc, handle)) {
+                int slot = location[handle];
+                if (slot >= 0) {
+                    nursery[slot] = null;
+                } else {
+                    old[~slot] = null;
+                }
+                location[handle] = FREE;
+                generation[handle] = (generation[handle] + 1) & GENERATION_MASK;
+                freeHandles[freeCount++] = handle;
+                live--;
+                freedCells++;
+            }
+            return loc;
+        }
+
+        private boolean isLive(Value.RefVal loc, int handle) {
+            return location[handle] != FREE && generation[handle] == loc.loc() >>> HANDLE_BITS;
+        }
+
+        /**
+         * Promotes the nursery's surviving cells to the old space, compacting
+         * the old space first if they would not fit. If they still do not,
+         * the survivors are slid together in the nursery instead. Returns
+         * whether the nursery has room for another cell.
+         */
+        private boolean collectNursery() {
+            int survivors = 0;
+            for (int slot = 0; slot < nurseryTop; slot++) {
+                if (location[nurseryOwner[slot]] == slot) {
+                    survivors++;
+                }
+            }
+            if (oldTop + survivors > old.length) {
+                compact();
+                if (oldTop + survivors > old.length) {
+                    compactNursery();
+                    return nurseryTop < nursery.length;
+                }
+            }
+            for (int slot = 0; slot < nurseryTop; slot++) {
+                int handle = nurseryOwner[slot];
+                if (location[handle] == slot) {
+                    old[oldTop] = nursery[slot];
+                    oldOwner[oldTop] = handle;
+                    location[handle] = ~oldTop;
+                    oldTop++;
+                }
+                nursery[slot] = null;
+            }
+            promotions += survivors;
+            minorCollections++;
+            nurseryTop = 0;
+            return true;
+        }
+
+        private void compactNursery() {
+            int to = 0;
+            for (int from = 0; from < nurseryTop; from++) {
+                int handle = nurseryOwner[from];
+                if (location[handle] == from) {
+                    nursery[to] = nursery[from];
+                    nurseryOwner[to] = handle;
+                    location[handle] = to;
+                    to++;
+                }
+            }
+            Arrays.fill(nursery, to, nurseryTop, null);
+            nurseryTop = to;
+            minorCollections++;
+        }
+
+        private void compact() {
+            long start = System.nanoTime();
+            int to = 0;
+            for (int from = 0; from < oldTop; from++) {
+                int handle = oldOwner[from];
+                if (location[handle] == ~from) {
+                    old[to] = old[from];
+                    oldOwner[to] = handle;
+                    location[handle] = ~to;
+                    to++;
+                }
+            }
+            Arrays.fill(old, to, oldTop, null);
+            oldTop = to;
+            compactions++;
+            compactionNanos += System.nanoTime() - start;
+        }
+
+        public MetricsMXBean metrics() {
+            return new Metrics();
+        }
+
+        private class Metrics implements GenerationalMXBean {
+            public int getCapacity() {
+                return location.length;
+            }
+
+            public int getLiveCells() {
+                return live;
+            }
+
+            public int getFreedCells() {
+                return freedCells;
+            }
+
+            public int getHighWaterMark() {
+                return highWater;
+            }
+
+            public long getAllocations() {
+                return allocations;
+            }
+
+            public long getFrees() {
+                return frees;
+            }
+
+            public long getDerefs() {
+                return derefs;
+            }
+
+            public long getSetrefs() {
+                return setrefs;
+            }
+
+            public long getReleasedCells() {
+                return 0;
+            }
+
+            public double getAllocationRate() {
+                double seconds = (System.nanoTime() - created) / 1e9;
+                return seconds > 0 ? allocations / seconds : 0;
+            }
+
+            public int getNurserySize() {
+                return nursery.length;
+            }
+
+            public long getPromotions() {
+                return promotions;
+            }
+
+            public long getMinorCollections() {
+                return minorCollections;
+            }
+
+            public long getCompactions() {
+                return compactions;
+            }
+
+            public double getCompactionTime() {
+                return compactionNanos / 1e6;
+            }
+        }
+    }
+
+    /**
+     * Counters of a CopyOnWrite heap on top of those of every heap.
+     */
+    interface CopyOnWriteMXBean extends MetricsMXBean {
+        int getPageSize();
+
+        /**
+         * Number of pages only this heap can see.
+         */
+        int getOwnedPages();
+
+        /**
+         * Number of pages this heap shares with the heap it was forked from
+         * or with its own forks.
+         */
+        int getSharedPages();
+
+        long getPageCopies();
+    }
+
+    /**
+     * A heap that forks in time proportional to its number of pages rather
+     * than its number of cells. Cells are kept in fixed size pages, and a
+     * fork shares all of its parent's pages with it. The first of them to
+     * write to a shared page copies it, so each fork only takes up memory for
+     * the pages it changes. A heap must not be forked while it is in use.
+     */
+    class CopyOnWrite implements Heap {
+        static final int PAGE_BITS = 8;
+        static final int PAGE_SIZE = 1 << PAGE_BITS;
+        static final int HEAP_SIZE = Heap16Bit.HEAP_SIZE;
+
+        private final Value[][] pages;
+        // whether no other heap can see a page, so that it can be written in place
+        private final boolean[] owned;
+        private int index = 0;
+        private int freedCells = 0;
+        private int highWater = 0;
+
+        private final long created = System.nanoTime();
+        private long allocations = 0;
+        private long frees = 0;
+        private long derefs = 0;
+        private long setrefs = 0;
+        private long pageCopies = 0;
+
+        public CopyOnWrite() {
+            pages = new Value[HEAP_SIZE >>> PAGE_BITS][];
+            owned = new boolean[pages.length];
+        }
+
+        private CopyOnWrite(CopyOnWrite parent) {
+            pages = parent.pages.clone();
+            owned = new boolean[pages.length];
+            Arrays.fill(parent.owned, false);
+            index = parent.index;
+            freedCells = parent.freedCells;
+            highWater = parent.highWater;
+        }
+
+        public CopyOnWrite fork() {
+            return new CopyOnWrite(this);
+        }
+
+        private Value get(int loc) {
+            Value[] page = pages[loc >>> PAGE_BITS];
+            return page == null ? null : page[loc & (PAGE_SIZE - 1)];
+        }
+
+        private void set(int loc, Value value) {
+            int page = loc >>> PAGE_BITS;
+            if (!owned[page]) {
+                if (pages[page] == null) {
+                    pages[page] = new Value[PAGE_SIZE];
+                } else {
+                    pages[page] = pages[page].clone();
+                    pageCopies++;
+                }
+                owned[page] = true;
+            }
+            pages[page][loc & (PAGE_SIZE - 1)] = value;
+        }
+
+        public Value ref(Value value) {
+            if (index >= HEAP_SIZE) {
+                return new Value.DynamicError("Out of memory error");
+            }
+            Value.RefVal new_loc = new Value.RefVal(index);
+            set(index++, value);
+            allocations++;
+            if (index > highWater) {
+                highWater = index;
+            }
+            return new_loc;
+        }
+
+        public Value deref(Value.RefVal loc) {
+            derefs++;
+            if (loc.loc() < 0 || loc.loc() >= HEAP_SIZE) {
+                return new Value.DynamicError("Segmentation fault at access " + loc);
+            }
+            Value value = get(loc.loc());
+            if (value == null) return new Value.DynamicError("Null pointer at " + loc);
+            return value;
+        }
+
+        public Value setref(Value.RefVal loc, Value value) {
+            setrefs++;
+            if (loc.loc() < 0 || loc.loc() >= HEAP_SIZE) {
+                return new Value.DynamicError("Segmentation fault at access " + loc);
+            }
+            if (get(loc.loc()) == null) return new Value.DynamicError("Null pointer at " + loc);
+            set(loc.loc(), value);
+            return value;
+        }
+
+        public Value free(Value.RefVal loc) {
+            frees++;
+            if (loc.loc() < 0 || loc.loc() >= HEAP_SIZE) {
+                return new Value.DynamicError("Segmentation fault at access " + loc);
+            }
+            if (get(loc.loc()) != null) {
+                set(loc.loc(), null);
+                freedCells++;
+            }
+            return loc;
+        }
+
+        public MetricsMXBean metrics() {
+            return new Metrics();
+        }
+
+        private class Metrics implements CopyOnWriteMXBean {
+            public int getCapacity() {
+                return HEAP_SIZE;
+            }
+
+            public int getLiveCells() {
+                return index - freedCells;
+            }
+
+            public int getFreedCells() {
+                return freedCells;
+            }
+
+            public int getHighWaterMark() {
+                return highWater;
+            }
+
+            public long getAllocations() {
+                return allocations;
+            }
+
+            public long getFrees() {
+                return frees;
+            }
+
+            public long getDerefs() {
+                return derefs;
+            }
+
+            public long getSetrefs() {
+                return setrefs;
+            }
+
+            public long getReleasedCells() {
+                return 0;
+            }
+
+            public double getAllocationRate() {
+                double seconds = (System.nanoTime() - created) / 1e9;
+                return seconds > 0 ? allocations / seconds : 0;
+            }
+
+            public int getPageSize() {
+                return PAGE_SIZE;
+            }
+
+            public int getOwnedPages() {
+                int count = 0;
+                for (boolean o : owned) {
+                    if (o) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+
+            public int getSharedPages() {
+                int count = 0;
+                for (int page = 0; page < pages.length; page++) {
+                    if (pages[page] != null && !owned[page]) {
+                        count++;
+                    }
+                }
+                return count;
+            }
+
+            public long getPageCopies() {
+                return pageCopies;
+            }
+        }
     }
 
 }
@@ -0,0 +1,430 @@
+package typelang;
+
+import typelang.AST.Exp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class saves a session to an image and restores it: the global
+ * environments of an Evaluator and a Checker, and the cells of the
+ * evaluator's heap. A session booted from an image has the definitions of
+ * the one that saved it without parsing, checking or evaluating them again.
+ * <p>
+ * Identifiers, types and function bodies are written by a Serializer into the
+ * same stream, sharing its string table. A pair, function or cell reachable
+ * along several paths is written once and referred back to afterwards, so
+ * closures still share their bodies and local cells after a restore. The
+ * contents of cells are written last, which breaks the cycles a closure
+ * stored in a cell it captures would otherwise create.
+ */
+public class Image {
+    static final int MAGIC = 0x544C494D; // "TLIM"
+    static final int VERSION = 1;
+
+    private static final int SEEN = 0;
+    private static final int NUM = 1;
+    private static final int TRUE = 2;
+    private static final int FALSE = 3;
+    private static final int UNIT = 4;
+    private static final int NULL = 5;
+    private static final int REF = 6;
+    private static final int ERROR = 7;
+    private static final int PAIR = 8;
+    private static final int NUM_LIST = 9;
+    private static final int BOOL_LIST = 10;
+    private static final int VALUE_LIST = 11;
+    private static final int FUN = 12;
+    private static final int CELL = 13;
+    private static final int FREED = 14;
+
+    private final DataOutputStream out;
+    private final Serializer serializer;
+    private final Map<Object, Integer> seen = new IdentityHashMap<>();
+    private final Map<Exp, Integer> bodies = new IdentityHashMap<>();
+    private final Deque<Value.CellVal> cells = new ArrayDeque<>();
+
+    private Image(DataOutputStream out) {
+        this.out = out;
+        this.serializer = new Serializer(out);
+    }
+
+    public static void write(Evaluator eval, Checker checker, OutputStream os) throws IOException {
+        if (!(eval.heap instanceof Heap.Heap16Bit heap)) {
+            throw new IOException("Only the default heap can be saved in an image");
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        Image image = new Image(out);
+        try {
+            List<Map.Entry<String, Type>> types = checker.globalEnv.bindings();
+            image.serializer.count(types.size());
+            for (Map.Entry<String, Type> binding : types) {
+                image.serializer.string(binding.getKey());
+                image.serializer.type(binding.getValue());
+            }
+            image.env(eval.globalEnv);
+            image.serializer.count(heap.index);
+            for (int loc = 0; loc < heap.index; loc++) {
+                if (heap._rep[loc] == null) {
+                    out.writeByte(FREED);
+                } else {
+                    image.value(heap._rep[loc]);
+                }
+            }
+            while (!image.cells.isEmpty()) {
+                image.value(image.cells.poll().value());
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.flush();
+    }
+
+    /**
+     * Replaces the global environments of the evaluator and the checker and
+     * the contents of the evaluator's heap with those saved in an image.
+     */
+    public static void read(InputStream is, Evaluator eval, Checker checker) throws IOException {
+        if (!(eval.heap instanceof Heap.Heap16Bit heap)) {
+            throw new IOException("An image can only be restored into the default heap");
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a TypeLang image");
+        }
+        Loader loader = new Loader(in);
+        Env<Type> types = new Env.EmptyEnv<>();
+        for (int size = loader.decoder.count(); size > 0; size--) {
+            types = types.extend(loader.decoder.string(), loader.decoder.type());
+        }
+        Env<Value> values = loader.env();
+        Value[] cells = new Value[loader.decoder.count()];
+        if (cells.length > Heap.Heap16Bit.HEAP_SIZE) {
+            throw new IOException("Image heap is larger than the heap");
+        }
+        for (int loc = 0; loc < cells.length; loc++) {
+            cells[loc] = loader.value();
+        }
+        while (!loader.cells.isEmpty()) {
+            loader.cells.poll().set(loader.value());
+        }
+        checker.globalEnv = types;
+        eval.globalEnv = values;
+        heap.restore(cells);
+    }
+
+    private void env(Env<Value> env) throws IOException {
+        List<Map.Entry<String, Value>> bindings = env.bindings();
+        serializer.count(bindings.size());
+        for (Map.Entry<String, Value> binding : bindings) {
+            serializer.string(binding.getKey());
+            value(binding.getValue());
+        }
+    }
+
+    /**
+     * Writes a value before its parts, depth first. The parts still to be
+     * written, with the names of a closure's variables and its body, are kept
+     * on a stack rather than the call stack, so a long list or a deep chain
+     * of closures does not overflow it.
+     */
+    private void value(Value root) throws IOException {
+        Deque<Object> work = new ArrayDeque<>();
+        work.push(root);
+        while (!work.isEmpty()) {
+            switch (work.pop()) {
+                case String name -> serializer.string(name);
+                case Exp body -> body(body);
+                case Value v -> write(v, work);
+                default -> throw new IllegalStateException();
+            }
+        }
+    }
+
+    private void write(Value v, Deque<Object> work) throws IOException {
+        if (v instanceof Value.PairVal || v instanceof Value.FunVal || v instanceof Value.CellVal) {
+            Integer index = seen.get(v);
+            if (index != null) {
+                out.writeByte(SEEN);
+                serializer.count(index);
+                return;
+            }
+            seen.put(v, seen.size());
+        }
+        switch (v) {
+            case Value.NumVal n -> {
+                out.writeByte(NUM);
+                out.writeDouble(n.v());
+            }
+            case Value.BoolVal b -> out.writeByte(b.v() ? TRUE : FALSE);
+            case Value.UnitVal u -> out.writeByte(UNIT);
+            case Value.Null n -> out.writeByte(NULL);
+            case Value.RefVal r -> {
+                out.writeByte(REF);
+                serializer.count(r.loc());
+            }
+            case Value.DynamicError e -> {
+                out.writeByte(ERROR);
+                out.writeUTF(e.toString());
+            }
+            case Value.NumListVal l -> {
+                out.writeByte(NUM_LIST);
+                serializer.count(l.length());
+                for (int i = 0; i < l.length(); i++) {
+                    out.writeDouble(l.num(i));
+                }
+            }
+            case Value.BoolListVal l -> {
+                out.writeByte(BOOL_LIST);
+                serializer.count(l.length());
+                for (int i = 0; i < l.length(); i++) {
+                    out.writeBoolean(l.bool(i));
+                }
+            }
+            case Value.ListVal l -> {
+                out.writeByte(VALUE_LIST);
+                serializer.count(l.length());
+                for (int i = l.length() - 1; i >= 0; i--) {
+                    work.push(l.get(i));
+                }
+            }
+            case Value.PairVal p -> {
+                out.writeByte(PAIR);
+                work.push(p.snd());
+                work.push(p.fst());
+            }
+            case Value.FunVal f -> {
+                out.writeByte(FUN);
+                serializer.strings(f.formals());
+                out.writeBoolean(f.region());
+                List<Map.Entry<String, Value>> bindings = f.env().bindings();
+                serializer.count(bindings.size());
+                work.push(f.body());
+                for (int i = bindings.size() - 1; i >= 0; i--) {
+                    work.push(bindings.get(i).getValue());
+                    work.push(bindings.get(i).getKey());
+                }
+            }
+            case Value.CellVal c -> {
+                out.writeByte(CELL);
+                cells.add(c);
+            }
+        }
+    }
+
+    private void body(Exp body) throws IOException {
+        Integer index = bodies.get(body);
+        if (index != null) {
+            serializer.count(index + 1);
+        } else {
+            serializer.count(0);
+            bodies.put(body, bodies.size());
+            serializer.exp(body);
+        }
+    }
+
+    /**
+     * Rebuilds what an Image wrote, mirroring its encoding.
+     */
+    private static class Loader {
+        private final DataInputStream in;
+        private final Serializer.Decoder decoder;
+        private final List<Value> seen = new ArrayList<>();
+        private final List<Exp> bodies = new ArrayList<>();
+        private final Deque<Value.CellVal> cells = new ArrayDeque<>();
+
+        Loader(DataInputStream in) {
+            this.in = in;
+            this.decoder = new Serializer.Decoder(in, null);
+        }
+
+        private Env<Value> env() throws IOException {
+            Env<Value> env = new Env.EmptyEnv<>();
+            for (int size = decoder.count(); size > 0; size--) {
+                env = env.extend(decoder.string(), value());
+            }
+            return env;
+        }
+
+        private int reserve() {
+            seen.add(null);
+            return seen.size() - 1;
+        }
+
+        private Value register(int index, Value v) {
+            seen.set(index, v);
+            return v;
+        }
+
+        /**
+         * A pair, list or closure whose parts are still being read.
+         */
+        private static class Pending {
+            final int tag;
+            final int index;
+            final Value[] parts;
+            int read = 0;
+            List<String> formals;
+            boolean region;
+            String[] names;
+
+            Pending(int tag, int index, int size) {
+                this.tag = tag;
+                this.index = index;
+                this.parts = new Value[size];
+            }
+        }
+
+        /**
+         * Reads a value written by Image.value. Pairs, lists and closures wait
+         * on a stack for their parts, the mirror image of how they were
+         * written.
+         */
+        private Value value() throws IOException {
+            Deque<Pending> work = new ArrayDeque<>();
+            while (true) {
+                Value value;
+                Pending pending = null;
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                    case SEEN -> {
+                        int index = decoder.count();
+                        if (index >= seen.size() || seen.get(index) == null) {
+                            throw new IOException("Malformed image reference");
+                        }
+                        value = seen.get(index);
+                    }
+                    case NUM -> value = new Value.NumVal(in.readDouble());
+                    case TRUE -> value = new Value.BoolVal(true);
+                    case FALSE -> value = new Value.BoolVal(false);
+                    case UNIT -> value = new Value.UnitVal();
+                    case NULL -> value = new Value.Null();
+                    case REF -> value = new Value.RefVal(decoder.count());
+                    case ERROR -> value = new Value.DynamicError(in.readUTF());
+                    case NUM_LIST -> {
+                        int index = reserve();
+                        double[] nums = new double[decoder.count()];
+                        for (int i = 0; i < nums.length; i++) {
+                            nums[i] = in.readDouble();
+                        }
+                        value = register(index, new Value.NumListVal(nums, 0));
+                    }
+                    case BOOL_LIST -> {
+                        int index = reserve();
+                        int length = decoder.count();
+                        long[] bits = new long[(length + 63) >>> 6];
+                        for (int i = 0; i < length; i++) {
+                            if (in.readBoolean()) {
+                                bits[i >>> 6] |= 1L << i;
+                            }
+                        }
+                        value = register(index, new Value.BoolListVal(bits, length, 0));
+                    }
+                    case VALUE_LIST -> {
+                        int index = reserve();
+                        pending = new Pending(VALUE_LIST, index, decoder.count());
+                        value = null;
+                    }
+                    case PAIR -> {
+                        pending = new Pending(PAIR, reserve(), 2);
+                        value = null;
+                    }
+                    case FUN -> {
+                        int index = reserve();
+                        List<String> formals = decoder.strings();
+                        boolean region = in.readBoolean();
+                        pending = new Pending(FUN, index, decoder.count());
+                        pending.formals = formals;
+                        pending.region = region;
+                        pending.names = new String[pending.parts.length];
+                        value = null;
+                    }
+                    case CELL -> {
+                        Value.CellVal cell = new Value.CellVal(null);
+                        seen.add(cell);
+                        cells.add(cell);
+                        value = cell;
+                    }
+                    case FREED -> value = null;
+                    default -> throw new IOException("Unknown value tag " + tag);
+                }
+                if (pending != null) {
+                    if (pending.parts.length > 0) {
+                        work.push(pending);
+                        next(pending);
+                        continue;
+                    }
+                    value = build(pending);
+                }
+                // hand the value to the pairs, lists and closures it completes
+                while (!work.isEmpty()) {
+                    Pending parent = work.peek();
+                    parent.parts[parent.read++] = value;
+                    if (parent.read < parent.parts.length) {
+                        next(parent);
+                        break;
+                    }
+                    work.pop();
+                    value = build(parent);
+                }
+                if (work.isEmpty()) {
+                    return value;
+                }
+            }
+        }
+
+        /**
+         * Reads what comes before the next part of a pending value, the name
+         * of a closure's variable.
+         */
+        private void next(Pending pending) throws IOException {
+            if (pending.tag == FUN) {
+                pending.names[pending.read] = decoder.string();
+            }
+        }
+
+        private Value build(Pending pending) throws IOException {
+            switch (pending.tag) {
+                case PAIR -> {
+                    return register(pending.index, new Value.PairVal(pending.parts[0], pending.parts[1]));
+                }
+                case VALUE_LIST -> {
+                    return register(pending.index, new Value.ValueListVal(pending.parts, 0));
+                }
+                default -> {
+                    Env<Value> captured = new Env.EmptyEnv<>();
+                    for (int i = 0; i < pending.parts.length; i++) {
+                        captured = captured.extend(pending.names[i], pending.parts[i]);
+                    }
+                    Env<Value> env = Env.ArrayEnv.capture(captured, Arrays.asList(pending.names));
+                    int seenBody = decoder.count();
+                    Exp body;
+                    if (seenBody == 0) {
+                        body = decoder.exp();
+                        bodies.add(body);
+                    } else if (seenBody <= bodies.size()) {
+                        body = bodies.get(seenBody - 1);
+                    } else {
+                        throw new IOException("Malformed image reference");
+                    }
+                    return register(pending.index, new Value.FunVal(env, pending.formals, body, pending.region));
+                }
+            }
+        }
+    }
+}
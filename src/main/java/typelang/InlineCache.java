@@ -0,0 +1,101 @@
+package typelang;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A polymorphic inline cache for one call site. It remembers the last few
+ * functions called from the site, together with the environment each one's
+ * body runs in before its formals are bound, so that a repeated call skips
+ * the arity check and appending the closure's environment to the global one.
+ * <p>
+ * An entry only holds for the global environment it was prepared with,
+ * which a define replaces. A cache is only used by the evaluator that made
+ * it; a fork running the same code replaces it with one of its own.
+ */
+public final class InlineCache {
+    static final int MAX_ENTRIES = 4;
+
+    private record Entry(Value.FunVal target, Env<Value> globalEnv, Env<Value> base) {
+    }
+
+    private final AST.CallExp site;
+    final Evaluator owner;
+    private Entry[] entries = new Entry[0];
+    private long hits = 0;
+    private long misses = 0;
+
+    InlineCache(AST.CallExp site, Evaluator owner) {
+        this.site = site;
+        this.owner = owner;
+    }
+
+    /**
+     * The environment prepared for a call of target with the given global
+     * environment, or null if it is not cached.
+     */
+    Env<Value> lookup(Value.FunVal target, Env<Value> globalEnv) {
+        Entry[] current = entries;
+        for (Entry entry : current) {
+            if (entry.target == target && entry.globalEnv == globalEnv) {
+                hits++;
+                return entry.base;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Counts a call made with an entry that a caller kept for itself, as a
+     * specialized call node does.
+     */
+    void hit() {
+        hits++;
+    }
+
+    /**
+     * Caches the environment prepared for a call of target, dropping the
+     * least recently added entry if the cache is full.
+     */
+    void add(Value.FunVal target, Env<Value> globalEnv, Env<Value> base) {
+        Entry[] current = entries;
+        Entry[] updated = new Entry[Math.min(current.length + 1, MAX_ENTRIES)];
+        updated[0] = new Entry(target, globalEnv, base);
+        System.arraycopy(current, 0, updated, 1, updated.length - 1);
+        entries = updated;
+    }
+
+    /**
+     * Prints the hits and misses of the given call sites, busiest first.
+     */
+    static void report(PrintWriter out, Collection<InlineCache> sites) {
+        List<InlineCache> used = new ArrayList<>();
+        long hits = 0;
+        long misses = 0;
+        for (InlineCache cache : sites) {
+            if (cache.hits + cache.misses > 0) {
+                used.add(cache);
+                hits += cache.hits;
+                misses += cache.misses;
+            }
+        }
+        if (used.isEmpty()) {
+            out.println("No calls.");
+            return;
+        }
+        used.sort(Comparator.comparingLong((InlineCache c) -> c.hits + c.misses).reversed()
+                .thenComparingInt(c -> c.site.line())
+                .thenComparingInt(c -> c.site.column()));
+        Printer.Formatter<Value> formatter = new Printer.Formatter<>();
+        out.printf("%10s %10s %8s %8s  %s%n", "hits", "misses", "hit %", "targets", "call site");
+        for (InlineCache cache : used) {
+            out.printf("%10d %10d %8.1f %8d  %s%n", cache.hits, cache.misses,
+                    100.0 * cache.hits / (cache.hits + cache.misses), cache.entries.length, formatter.locate(cache.site));
+        }
+        out.printf("%10d %10d %8.1f %8s  %d call sites%n", hits, misses, 100.0 * hits / (hits + misses), "", used.size());
+    }
+}
@@ -1,6 +1,20 @@
 package typelang;
 
 import typelang.AST.Program;
+import typelang.vm.Compiler;
+import typelang.vm.VM;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This main class implements the Read-Eval-Print-Loop of the interpreter with
@@ -10,48 +24,209 @@ import typelang.AST.Program;
  */
 public class Interpreter {
     public static void main(String[] args) {
-        System.out.println("""
-                TypeLang: Type a program to evaluate and press the enter key,
-                e.g. ((lambda (x: num y: num z : num) (+ x (+ y z))) 1 2 3)\s
-                or try (let ((x : num 2)) x)\s
-                or try (car (list : num  1 2 8))\s
-                or try (ref : num 2)\s
-                or try  (let ((a : Ref num (ref : num 2))) (set! a (deref a)))\s
-                Press Ctrl + C to exit.
-                """);
+        Profiler profiler = null;
+        boolean interactive = true;
+        boolean parallelCheck = false;
+        boolean allErrors = false;
+        boolean trusted = false;
+        boolean switchDispatch = false;
+        boolean specialize = false;
+        boolean bytecode = false;
+        boolean forks = false;
+        boolean regions = false;
+        String heapKind = null;
+        int nurserySize = Heap.Generational.DEFAULT_NURSERY_SIZE;
+        String heapFile = null;
+        String image = null;
+        for (String arg : args) {
+            if (arg.equals("--profile")) {
+                profiler = new Profiler();
+            } else if (arg.equals("--batch")) {
+                interactive = false;
+            } else if (arg.equals("--parallel-check")) {
+                parallelCheck = true;
+            } else if (arg.equals("--all-errors")) {
+                allErrors = true;
+            } else if (arg.equals("--trusted")) {
+                trusted = true;
+            } else if (arg.equals("--switch-dispatch")) {
+                switchDispatch = true;
+            } else if (arg.equals("--specialize")) {
+                specialize = true;
+            } else if (arg.equals("--vm")) {
+                bytecode = true;
+            } else if (arg.equals("--fork")) {
+                forks = true;
+            } else if (arg.equals("--regions")) {
+                regions = true;
+            } else if (arg.equals("--heap=generational") || arg.equals("--heap=16bit") || arg.equals("--heap=cow")) {
+                heapKind = arg.substring("--heap=".length());
+            } else if (arg.startsWith("--image=")) {
+                image = arg.substring("--image=".length());
+            } else if (arg.startsWith("--heap-file=")) {
+                heapFile = arg.substring("--heap-file=".length());
+            } else if (arg.startsWith("--nursery-size=")) {
+                try {
+                    int size = Integer.parseInt(arg.substring("--nursery-size=".length()));
+                    if (size <= 0 || size > Heap.Generational.MAX_NURSERY_SIZE) {
+                        throw new NumberFormatException();
+                    }
+                    nurserySize = size;
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid nursery size: " + arg);
+                }
+            } else {
+                System.err.println("Unknown option: " + arg);
+            }
+        }
+        if ((trusted ? 1 : 0) + (switchDispatch ? 1 : 0) + (specialize ? 1 : 0) + (bytecode ? 1 : 0) > 1) {
+            System.err.println("Only one of --trusted, --switch-dispatch, --specialize and --vm can be given");
+            return;
+        }
+        if (heapFile != null && heapKind != null) {
+            System.err.println("--heap-file and --heap= cannot be given together");
+            return;
+        }
+        if (regions && (heapFile != null || (heapKind != null && !heapKind.equals("16bit")))) {
+            System.err.println("--regions is only supported with --heap=16bit");
+            return;
+        }
+        if (bytecode && (profiler != null || regions)) {
+            System.err.println("--profile and --regions are not supported with --vm");
+            return;
+        }
+
+        if (interactive) {
+            System.out.println("""
+                    TypeLang: Type a program to evaluate and press the enter key,
+                    e.g. ((lambda (x: num y: num z : num) (+ x (+ y z))) 1 2 3)\s
+                    or try (let ((x : num 2)) x)\s
+                    or try (car (list : num  1 2 8))\s
+                    or try (ref : num 2)\s
+                    or try  (let ((a : Ref num (ref : num 2))) (set! a (deref a)))\s
+                    Type heap to show heap usage, calls to show call site cache hits,
+                    or image <file> to save the session.
+                    Press Ctrl + C to exit.
+                    """);
+        }
+        Heap heap;
+        try {
+            heap = heapFile != null ? new MappedHeap(Path.of(heapFile))
+                    : "generational".equals(heapKind) ? new Heap.Generational(nurserySize, Heap.Generational.DEFAULT_OLD_SIZE)
+                    : "cow".equals(heapKind) ? new Heap.CopyOnWrite()
+                    : new Heap.Heap16Bit();
+        } catch (IOException e) {
+            System.err.println("Cannot open heap file: " + e.getMessage());
+            return;
+        }
         try (Reader reader = new Reader()) {
-            Evaluator eval = new Evaluator();
-            Printer printer = new Printer();
+            Evaluator eval = trusted ? new TrustedEvaluator(heap)
+                    : switchDispatch ? new SwitchEvaluator(heap)
+                    : specialize ? new SpecializingEvaluator(heap)
+                    : new Evaluator(heap);
+            // checked programs are compiled to bytecode and run in the VM
+            // instead, with the evaluator's heap and definitions
+            VM vm = bytecode ? new VM(eval) : null;
+            eval.setProfiler(profiler);
+            eval.setRegions(regions);
+            Printer printer = new Printer(interactive);
+            if (!interactive) {
+                reader.setPrompt(null);
+            }
             // adding the type checker
             Checker checker = new Checker();
+            if (parallelCheck) {
+                checker.setParallelism(ForkJoinPool.commonPool());
+            }
+            if (image != null) {
+                try (InputStream in = Files.newInputStream(Path.of(image))) {
+                    Image.read(in, eval, checker);
+                } catch (IOException e) {
+                    System.err.println("Cannot boot from image: " + e.getMessage());
+                }
+            }
+            reader.addCommand("heap", () -> printer.print(eval.heapMetrics()));
+            reader.addCommand("calls", () -> {
+                if (vm != null) {
+                    printer.print("Calls are not counted by the VM");
+                    return;
+                }
+                printer.printCalls(eval.callSites);
+                if (eval instanceof SpecializingEvaluator s) {
+                    printer.print("%d node specializations, %d deoptimizations".formatted(s.specializations, s.deoptimizations));
+                }
+            });
+            reader.addCommand("image", file -> {
+                try (OutputStream out = Files.newOutputStream(Path.of(file))) {
+                    Image.write(eval, checker, out);
+                    printer.print("Saved image " + file);
+                } catch (IOException e) {
+                    printer.print("Error:" + e.getMessage());
+                }
+            });
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .registerMBean(eval.heapMetrics(), new ObjectName("typelang:type=Heap"));
+            } catch (JMException e) {
+                System.err.println("Heap metrics are not available over JMX: " + e.getMessage());
+            }
             // Read-Eval-Print-Loop (also known as REPL)
-            while (true) {
-                Program p;
-                try {
-                    p = reader.read();
-                    if (p == null) {
-                        System.out.println();
-                        break;
-                    } else if (p._e == null) {
-                        System.out.println();
-                    } else {
-                        // type check the program here
-                        Type t = checker.check(p);
-                        if (t instanceof Type.ErrorT) {
-                            printer.print(t);
+            // results buffered in batch mode are printed even if an Error ends the loop
+            try {
+                while (true) {
+                    Program p;
+                    try {
+                        p = reader.read();
+                        if (p == null) {
+                            printer.print("");
+                            break;
+                        } else if (p._e == null) {
+                            printer.print("");
                         } else {
-                            Value val = eval.valueOf(p);
-                            printer.print(val);
+                            // with --fork, every program runs in its own fork of the session
+                            // as it was booted, and its definitions and heap changes are dropped
+                            Checker types = forks ? checker.fork() : checker;
+                            Evaluator session = forks ? eval.fork() : eval;
+                            VM machine = vm == null ? null : forks ? new VM(session) : vm;
+                            // type check the program here
+                            List<Type.ErrorT> errors = allErrors ? types.checkAll(p) : List.of();
+                            Type t = allErrors ? null : types.check(p);
+                            if (!errors.isEmpty()) {
+                                errors.forEach(printer::print);
+                            } else if (t instanceof Type.ErrorT) {
+                                printer.print(t);
+                            } else {
+                                if (profiler != null) {
+                                    profiler.reset();
+                                }
+                                Value val = machine != null ? machine.run(Compiler.compile(p)) : session.valueOf(p);
+                                heap.flush();
+                                printer.print(val);
+                                if (profiler != null) {
+                                    printer.print(profiler);
+                                }
+                            }
                         }
+                    } catch (Env.LookupException e) {
+                        printer.print(e);
+                    } catch (Exception e) {
+                        printer.print("Error:" + e.getMessage());
                     }
-                } catch (Env.LookupException e) {
-                    printer.print(e);
-                } catch (Exception e) {
-                    System.out.println("Error:" + e.getMessage());
                 }
+            } finally {
+                printer.flush();
             }
         } catch (Exception e) {
             System.err.println("Error closing input stream: " + e.getMessage());
+        } finally {
+            // the cells changed since the last flush are written back however the loop ended
+            if (heap instanceof MappedHeap mapped) {
+                try {
+                    mapped.close();
+                } catch (IOException | UncheckedIOException e) {
+                    System.err.println("Cannot close heap file: " + e.getMessage());
+                }
+            }
         }
     }
 }
@@ -0,0 +1,549 @@
+package typelang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.zip.CRC32;
+
+/**
+ * A heap kept in a memory-mapped file, so that its cells survive the process
+ * and a later session can dereference the locations an earlier one created.
+ * <p>
+ * The file starts with a header, followed by two copies of the cell index
+ * and a data area. An index maps each location to the offset of its current
+ * value in the data area. A flush appends the values changed since the last
+ * flush, forces them to disk, writes the index to the copy that is not in use
+ * and forces it, and only then switches the header over to that copy. A crash
+ * at any point leaves the header pointing at a complete index whose data is
+ * all on disk.
+ * <p>
+ * Once the data area has grown to twice its size after the last compaction, a
+ * flush writes every live value instead, either in front of the oldest value
+ * the index in use refers to, if there is room, or else after the end of the
+ * data area. Nothing the index in use refers to is overwritten, so the same
+ * guarantee holds, and the space of the old values is reused from then on.
+ * <p>
+ * Values are decoded from the file the first time a location is
+ * dereferenced. Functions cannot be written to the file; they stay in memory
+ * for the rest of the session and read back as an error after a restart.
+ */
+public class MappedHeap implements Heap, AutoCloseable {
+    static final int MAGIC = 0x544C4850; // "TLHP"
+    static final int VERSION = 1;
+    static final int CAPACITY = Heap16Bit.HEAP_SIZE;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int ACTIVE_INDEX = 12;
+    // an index is its epoch, data end, cell count and checksum, then one offset per cell
+    private static final int INDEX_HEADER_SIZE = 24;
+    private static final int INDEX_SIZE = INDEX_HEADER_SIZE + CAPACITY * Long.BYTES;
+    private static final int DATA_START = HEADER_SIZE + 2 * INDEX_SIZE;
+    private static final int INITIAL_DATA_SIZE = 1 << 20;
+
+    private static final int NUM = 1;
+    private static final int TRUE = 2;
+    private static final int FALSE = 3;
+    private static final int UNIT = 4;
+    private static final int NULL = 5;
+    private static final int PAIR = 6;
+    private static final int REF = 7;
+    private static final int NUM_LIST = 8;
+    private static final int BOOL_LIST = 9;
+    private static final int VALUE_LIST = 10;
+    private static final int TRANSIENT = 11;
+
+    private final Path file;
+    private final FileChannel channel;
+    private MappedByteBuffer map;
+
+    private int active;
+    private long epoch;
+    private long dataEnd;
+    // size of the data area after the last compaction, 0 if there was none in this session
+    private long compactedSize = 0;
+    private int top;
+    private final long[] offsets = new long[CAPACITY];
+    // decoded or not yet flushed values; null for cells still only on disk
+    private final Value[] cache = new Value[CAPACITY];
+    private final BitSet dirty = new BitSet();
+    private boolean changed = false;
+
+    private final long created = System.nanoTime();
+    private int freedCells = 0;
+    private long allocations = 0;
+    private long frees = 0;
+    private long derefs = 0;
+    private long setrefs = 0;
+
+    /**
+     * Opens the heap stored in the given file, creating it if it does not exist.
+     */
+    public MappedHeap(Path file) throws IOException {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            boolean fresh = channel.size() == 0;
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), DATA_START + INITIAL_DATA_SIZE));
+            if (fresh) {
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putInt(8, CAPACITY);
+                dataEnd = DATA_START;
+                writeIndex(0);
+                map.putInt(ACTIVE_INDEX, 0);
+                map.force(0, HEADER_SIZE);
+            } else {
+                load();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void load() throws IOException {
+        if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != CAPACITY) {
+            throw new IOException("Not a TypeLang heap file: " + file);
+        }
+        active = map.getInt(ACTIVE_INDEX);
+        if (active != 0 && active != 1) {
+            throw new IOException("Corrupt heap file: " + file);
+        }
+        if (!isValid(active)) {
+            // the header is switched only after the index is on disk, so this is damage from outside
+            if (!isValid(1 - active)) {
+                throw new IOException("Corrupt heap file: " + file);
+            }
+            active = 1 - active;
+        }
+        int base = indexStart(active);
+        epoch = map.getLong(base);
+        dataEnd = map.getLong(base + 8);
+        top = map.getInt(base + 16);
+        for (int loc = 0; loc < top; loc++) {
+            offsets[loc] = map.getLong(base + INDEX_HEADER_SIZE + loc * Long.BYTES);
+            if (offsets[loc] == 0) {
+                freedCells++;
+            }
+        }
+    }
+
+    private static int indexStart(int index) {
+        return HEADER_SIZE + index * INDEX_SIZE;
+    }
+
+    private boolean isValid(int index) {
+        int base = indexStart(index);
+        int count = map.getInt(base + 16);
+        return count >= 0 && count <= CAPACITY && checksum(base, count) == map.getInt(base + 20);
+    }
+
+    private int checksum(int base, int count) {
+        CRC32 crc = new CRC32();
+        crc.update(map.slice(base, 20));
+        crc.update(map.slice(base + INDEX_HEADER_SIZE, count * Long.BYTES));
+        return (int) crc.getValue();
+    }
+
+    private void writeIndex(int index) {
+        int base = indexStart(index);
+        map.putLong(base, epoch);
+        map.putLong(base + 8, dataEnd);
+        map.putInt(base + 16, top);
+        for (int loc = 0; loc < top; loc++) {
+            map.putLong(base + INDEX_HEADER_SIZE + loc * Long.BYTES, offsets[loc]);
+        }
+        map.putInt(base + 20, checksum(base, top));
+        map.force(base, INDEX_HEADER_SIZE + top * Long.BYTES);
+    }
+
+    private boolean isLive(int loc) {
+        return cache[loc] != null || offsets[loc] != 0;
+    }
+
+    public Value ref(Value value) {
+        if (top == CAPACITY) {
+            return new Value.DynamicError("Out of memory error");
+        }
+        cache[top] = value;
+        dirty.set(top);
+        changed = true;
+        allocations++;
+        return new Value.RefVal(top++);
+    }
+
+    public Value deref(Value.RefVal loc) {
+        derefs++;
+        int l = loc.loc();
+        if (l < 0 || l >= CAPACITY) {
+            return new Value.DynamicError("Segmentation fault at access " + loc);
+        }
+        if (!isLive(l)) {
+            return new Value.DynamicError("Null pointer at " + loc);
+        }
+        return cell(l);
+    }
+
+    private Value cell(int loc) {
+        if (cache[loc] == null) {
+            cache[loc] = decode(new int[]{(int) offsets[loc]});
+        }
+        return cache[loc];
+    }
+
+    /**
+     * A fork lives in memory, starting out with the cells as they are now, so
+     * the file only ever holds the session that opened it.
+     */
+    public Heap fork() {
+        Value[] cells = new Value[top];
+        for (int loc = 0; loc < top; loc++) {
+            if (isLive(loc)) {
+                cells[loc] = cell(loc);
+            }
+        }
+        Heap16Bit child = new Heap16Bit();
+        child.restore(cells);
+        return child;
+    }
+
+    public Value setref(Value.RefVal loc, Value value) {
+        setrefs++;
+        int l = loc.loc();
+        if (l < 0 || l >= CAPACITY) {
+            return new Value.DynamicError("Segmentation fault at access " + loc);
+        }
+        if (!isLive(l)) {
+            return new Value.DynamicError("Null pointer at " + loc);
+        }
+        cache[l] = value;
+        dirty.set(l);
+        changed = true;
+        return value;
+    }
+
+    public Value free(Value.RefVal loc) {
+        frees++;
+        int l = loc.loc();
+        if (l < 0 || l >= CAPACITY) {
+            return new Value.DynamicError("Segmentation fault at access " + loc);
+        }
+        if (isLive(l)) {
+            cache[l] = null;
+            offsets[l] = 0;
+            dirty.clear(l);
+            changed = true;
+            freedCells++;
+        }
+        return loc;
+    }
+
+    /**
+     * Makes every change since the last flush durable.
+     */
+    public void flush() {
+        if (!changed) {
+            return;
+        }
+        boolean compacting = dataEnd - DATA_START > Math.max(INITIAL_DATA_SIZE, 2 * compactedSize);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        long start = dataEnd;
+        try {
+            if (compacting) {
+                start = compact(out, bytes);
+            } else {
+                for (int loc = dirty.nextSetBit(0); loc >= 0; loc = dirty.nextSetBit(loc + 1)) {
+                    offsets[loc] = dataEnd + bytes.size();
+                    encode(cache[loc], out);
+                }
+            }
+            reserve(start + bytes.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        map.put((int) start, bytes.toByteArray());
+        map.force((int) start, bytes.size());
+        dataEnd = start + bytes.size();
+
+        epoch++;
+        writeIndex(1 - active);
+        active = 1 - active;
+        map.putInt(ACTIVE_INDEX, active);
+        map.force(0, HEADER_SIZE);
+        if (compacting) {
+            // the other copy may refer to values the next flush overwrites
+            writeIndex(1 - active);
+            compactedSize = dataEnd - DATA_START;
+        }
+        dirty.clear();
+        changed = false;
+    }
+
+    /**
+     * Writes every live value to out and points the offsets at where they
+     * are going to be written, which is returned.
+     */
+    private long compact(DataOutputStream out, ByteArrayOutputStream bytes) throws IOException {
+        long[] moved = new long[top];
+        for (int loc = 0; loc < top; loc++) {
+            if (!isLive(loc)) {
+                continue;
+            }
+            moved[loc] = bytes.size();
+            if (dirty.get(loc)) {
+                encode(cache[loc], out);
+            } else {
+                int[] end = {(int) offsets[loc]};
+                decode(end);
+                byte[] value = new byte[end[0] - (int) offsets[loc]];
+                map.get((int) offsets[loc], value);
+                out.write(value);
+            }
+        }
+        // the index in use still refers to freed and changed cells' old values
+        long oldest = dataEnd;
+        int base = indexStart(active);
+        int count = map.getInt(base + 16);
+        for (int loc = 0; loc < count; loc++) {
+            long offset = map.getLong(base + INDEX_HEADER_SIZE + loc * Long.BYTES);
+            if (offset != 0) {
+                oldest = Math.min(oldest, offset);
+            }
+        }
+        long start = bytes.size() <= oldest - DATA_START ? DATA_START : dataEnd;
+        for (int loc = 0; loc < top; loc++) {
+            if (isLive(loc)) {
+                offsets[loc] = start + moved[loc];
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Grows the mapping until it covers the given end of the data area.
+     */
+    private void reserve(long end) throws IOException {
+        if (end <= map.capacity()) {
+            return;
+        }
+        long size = Math.max(end, 2L * map.capacity());
+        if (size > Integer.MAX_VALUE) {
+            if (end > Integer.MAX_VALUE) {
+                throw new IOException("Heap file is full: " + file);
+            }
+            size = Integer.MAX_VALUE;
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * Writes a value before its parts, depth first. The parts still to be
+     * written are kept on a stack rather than the call stack, so a long list
+     * built from pairs does not overflow it.
+     */
+    private static void encode(Value value, DataOutputStream out) throws IOException {
+        Deque<Value> work = new ArrayDeque<>();
+        work.push(value);
+        while (!work.isEmpty()) {
+            switch (work.pop()) {
+                case Value.NumVal n -> {
+                    out.writeByte(NUM);
+                    out.writeDouble(n.v());
+                }
+                case Value.BoolVal b -> out.writeByte(b.v() ? TRUE : FALSE);
+                case Value.UnitVal u -> out.writeByte(UNIT);
+                case Value.Null n -> out.writeByte(NULL);
+                case Value.RefVal r -> {
+                    out.writeByte(REF);
+                    out.writeInt(r.loc());
+                }
+                case Value.NumListVal l -> {
+                    out.writeByte(NUM_LIST);
+                    out.writeInt(l.length());
+                    for (int i = 0; i < l.length(); i++) {
+                        out.writeDouble(l.num(i));
+                    }
+                }
+                case Value.BoolListVal l -> {
+                    out.writeByte(BOOL_LIST);
+                    out.writeInt(l.length());
+                    for (int i = 0; i < l.length(); i++) {
+                        out.writeBoolean(l.bool(i));
+                    }
+                }
+                case Value.ListVal l -> {
+                    out.writeByte(VALUE_LIST);
+                    out.writeInt(l.length());
+                    for (int i = l.length() - 1; i >= 0; i--) {
+                        work.push(l.get(i));
+                    }
+                }
+                case Value.PairVal p -> {
+                    out.writeByte(PAIR);
+                    work.push(p.snd());
+                    work.push(p.fst());
+                }
+                case Value.FunVal f -> out.writeByte(TRANSIENT);
+                case Value.CellVal c -> out.writeByte(TRANSIENT);
+                case Value.DynamicError e -> out.writeByte(TRANSIENT);
+            }
+        }
+    }
+
+    /**
+     * A pair or list whose parts are still being decoded.
+     */
+    private static class Pending {
+        final int tag;
+        final Value[] parts;
+        int decoded = 0;
+
+        Pending(int tag, int size) {
+            this.tag = tag;
+            this.parts = new Value[size];
+        }
+    }
+
+    /**
+     * Decodes the value at pos[0] of the data area, advancing pos[0] past it.
+     * Pairs and lists wait on a stack for their parts, the mirror image of
+     * encode.
+     */
+    private Value decode(int[] pos) {
+        Deque<Pending> work = new ArrayDeque<>();
+        while (true) {
+            Value value;
+            int tag = map.get(pos[0]++);
+            switch (tag) {
+                case NUM -> {
+                    value = new Value.NumVal(map.getDouble(pos[0]));
+                    pos[0] += Double.BYTES;
+                }
+                case TRUE -> value = new Value.BoolVal(true);
+                case FALSE -> value = new Value.BoolVal(false);
+                case UNIT -> value = new Value.UnitVal();
+                case NULL -> value = new Value.Null();
+                case REF -> {
+                    value = new Value.RefVal(map.getInt(pos[0]));
+                    pos[0] += Integer.BYTES;
+                }
+                case NUM_LIST -> {
+                    double[] nums = new double[map.getInt(pos[0])];
+                    pos[0] += Integer.BYTES;
+                    for (int i = 0; i < nums.length; i++) {
+                        nums[i] = map.getDouble(pos[0]);
+                        pos[0] += Double.BYTES;
+                    }
+                    value = new Value.NumListVal(nums, 0);
+                }
+                case BOOL_LIST -> {
+                    int length = map.getInt(pos[0]);
+                    pos[0] += Integer.BYTES;
+                    long[] bits = new long[(length + 63) >>> 6];
+                    for (int i = 0; i < length; i++) {
+                        if (map.get(pos[0]++) != 0) {
+                            bits[i >>> 6] |= 1L << i;
+                        }
+                    }
+                    value = new Value.BoolListVal(bits, length, 0);
+                }
+                case VALUE_LIST -> {
+                    int length = map.getInt(pos[0]);
+                    pos[0] += Integer.BYTES;
+                    if (length > 0) {
+                        work.push(new Pending(VALUE_LIST, length));
+                        continue;
+                    }
+                    value = new Value.ValueListVal(new Value[0], 0);
+                }
+                case PAIR -> {
+                    work.push(new Pending(PAIR, 2));
+                    continue;
+                }
+                case TRANSIENT -> value = new Value.DynamicError("Value was not saved to the heap file");
+                default -> {
+                    return new Value.DynamicError("Corrupt heap file: " + file);
+                }
+            }
+            // hand the value to the pairs and lists it completes
+            while (!work.isEmpty()) {
+                Pending parent = work.peek();
+                parent.parts[parent.decoded++] = value;
+                if (parent.decoded < parent.parts.length) {
+                    break;
+                }
+                work.pop();
+                value = parent.tag == PAIR
+                        ? new Value.PairVal(parent.parts[0], parent.parts[1])
+                        : new Value.ValueListVal(parent.parts, 0);
+            }
+            if (work.isEmpty()) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Flushes the heap and closes its file.
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    public MetricsMXBean metrics() {
+        return new Metrics();
+    }
+
+    private class Metrics implements MetricsMXBean {
+        public int getCapacity() {
+            return CAPACITY;
+        }
+
+        public int getLiveCells() {
+            return top - freedCells;
+        }
+
+        public int getFreedCells() {
+            return freedCells;
+        }
+
+        public int getHighWaterMark() {
+            return top;
+        }
+
+        public long getAllocations() {
+            return allocations;
+        }
+
+        public long getFrees() {
+            return frees;
+        }
+
+        public long getDerefs() {
+            return derefs;
+        }
+
+        public long getSetrefs() {
+            return setrefs;
+        }
+
+        public long getReleasedCells() {
+            return 0;
+        }
+
+        public double getAllocationRate() {
+            double seconds = (System.nanoTime() - created) / 1e9;
+            return seconds > 0 ? allocations / seconds : 0;
+        }
+    }
+}
@@ -1,28 +1,284 @@
 package typelang;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class Printer {
+    static final int DEFAULT_LIMIT = 100_000;
+    static final int INTERACTIVE_BUFFER_SIZE = 1 << 16;
+    static final int BATCH_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Rendered bodies of lambda expressions, so printing the same function
+     * value again does not re-run the Formatter.
+     */
+    private static final Map<AST.Exp, String> lambdaBodies = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final PrintWriter out;
+    private final boolean interactive;
+    private int limit = DEFAULT_LIMIT;
+
+    public Printer() {
+        this(true);
+    }
+
+    /**
+     * An interactive printer flushes after every result. Otherwise results
+     * collect in a large buffer that is written out only when it fills up or
+     * flush() is called, which suits input piped in from a script.
+     */
+    public Printer(boolean interactive) {
+        this.interactive = interactive;
+        int bufferSize = interactive ? INTERACTIVE_BUFFER_SIZE : BATCH_BUFFER_SIZE;
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), bufferSize), false);
+    }
+
+    /**
+     * Sets the number of characters after which a printed value is cut
+     * short, or 0 to always print values in full.
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public void flush() {
+        out.flush();
+    }
+
+    private void printed() {
+        if (interactive) {
+            out.flush();
+        }
+    }
+
     public void print(Value v) {
-        if (v instanceof Value.UnitVal) {
-            System.out.println();
-        } else if (!v.toString().isEmpty()) {
-            System.out.println(v);
+        try {
+            if (v instanceof Value.UnitVal) {
+                out.println();
+            } else if (write(v, out, limit) > 0) {
+                out.println();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        printed();
+    }
+
+    /**
+     * Renders a value in full, the way it is printed.
+     */
+    static String toString(Value v) {
+        StringWriter result = new StringWriter();
+        try {
+            write(v, result, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes a value without recursion, so long and deeply nested lists do
+     * not overflow the stack. Each chain of pairs is walked once to tell a
+     * proper list from an improper one. Output stops with "..." after limit
+     * characters unless limit is 0. Returns the number of characters written.
+     */
+    static long write(Value v, Writer out, int limit) throws IOException {
+        Output output = new Output(out, limit);
+        Deque<Object> work = new ArrayDeque<>();
+        work.push(v);
+        while (!work.isEmpty() && !output.truncated) {
+            Object item = work.pop();
+            if (item instanceof String s) {
+                output.write(s);
+            } else if (item instanceof Elements elements) {
+                if (!elements.first) {
+                    output.write(" ");
+                }
+                Value elem = elements.next();
+                work.push(elements.hasNext() ? elements : ")");
+                work.push(elem);
+            } else if (item instanceof Improper improper) {
+                // the shape of this chain is already known, skip the walk
+                Value.PairVal p = improper.pair;
+                output.write("(");
+                work.push(")");
+                work.push(p.snd() instanceof Value.PairVal q ? new Improper(q) : p.snd());
+                work.push(" ");
+                work.push(p.fst());
+            } else if (item instanceof Value.PairVal p) {
+                if (isList(p)) {
+                    output.write("(");
+                    work.push(new Elements(p));
+                } else {
+                    work.push(new Improper(p));
+                }
+            } else if (item instanceof Value.FunVal f) {
+                output.write("(lambda (");
+                output.write(String.join(" ", f.formals()));
+                output.write(") ");
+                output.write(lambdaBodies.computeIfAbsent(f.body(), body -> body.accept(new Formatter<>(), null)));
+                output.write(")");
+            } else {
+                output.write(item.toString());
+            }
         }
+        return output.written;
+    }
+
+    private static boolean isList(Value.PairVal p) {
+        Value next = p;
+        while (next instanceof Value.PairVal q) {
+            if (q instanceof Value.ListVal) {
+                return true;
+            }
+            next = q.snd();
+        }
+        return next instanceof Value.Null;
+    }
+
+    private static class Output {
+        final Writer out;
+        final int limit;
+        long written = 0;
+        boolean truncated = false;
+
+        Output(Writer out, int limit) {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        void write(String s) throws IOException {
+            if (limit > 0 && written + s.length() > limit) {
+                out.write(s, 0, (int) (limit - written));
+                out.write("...");
+                written = limit + 3;
+                truncated = true;
+            } else {
+                out.write(s);
+                written += s.length();
+            }
+        }
+    }
+
+    /**
+     * The elements of a proper list still to be printed. Elements of a
+     * ListVal are read by index rather than through cdr slices.
+     */
+    private static class Elements {
+        private Value rest;
+        private Value.ListVal list = null;
+        private int index = 0;
+        boolean first = true;
+
+        Elements(Value.PairVal p) {
+            rest = p;
+        }
+
+        boolean hasNext() {
+            return list != null || rest instanceof Value.PairVal;
+        }
+
+        Value next() {
+            first = false;
+            if (list == null && rest instanceof Value.ListVal l) {
+                list = l;
+                index = 0;
+            }
+            if (list != null) {
+                Value elem = list.get(index++);
+                if (index == list.length()) {
+                    list = null;
+                    rest = new Value.Null();
+                }
+                return elem;
+            }
+            Value.PairVal p = (Value.PairVal) rest;
+            rest = p.snd();
+            return p.fst();
+        }
+    }
+
+    /**
+     * A pair already known not to start a proper list.
+     */
+    private record Improper(Value.PairVal pair) {
     }
 
     public void print(Type t) {
         if (!t.toString().isEmpty()) {
-            System.out.println(t);
+            out.println(t);
         }
+        printed();
     }
 
     public void print(Exception e) {
-        System.out.println(e.getMessage());
+        out.println(e.getMessage());
+        printed();
+    }
+
+    public void print(String line) {
+        out.println(line);
+        printed();
+    }
+
+    public void print(Heap.MetricsMXBean heap) {
+        out.printf("%d live, %d freed, high water mark %d of %d cells%n",
+                heap.getLiveCells(), heap.getFreedCells(), heap.getHighWaterMark(), heap.getCapacity());
+        out.printf("%d allocations (%.1f/s), %d frees, %d derefs, %d setrefs, %d cells released by regions%n",
+                heap.getAllocations(), heap.getAllocationRate(), heap.getFrees(), heap.getDerefs(), heap.getSetrefs(),
+                heap.getReleasedCells());
+        if (heap instanceof Heap.GenerationalMXBean generational) {
+            out.printf("%d minor collections of a %d cell nursery promoted %d cells, %d compactions took %.3f ms%n",
+                    generational.getMinorCollections(), generational.getNurserySize(), generational.getPromotions(),
+                    generational.getCompactions(), generational.getCompactionTime());
+        }
+        if (heap instanceof Heap.CopyOnWriteMXBean cow) {
+            out.printf("%d pages of %d cells owned, %d shared, %d copied on write%n",
+                    cow.getOwnedPages(), cow.getPageSize(), cow.getSharedPages(), cow.getPageCopies());
+        }
+        printed();
+    }
+
+    public void print(Profiler profiler) {
+        profiler.report(out);
+        printed();
+    }
+
+    public void printCalls(Collection<InlineCache> sites) {
+        InlineCache.report(out, sites);
+        printed();
     }
 
     public static class Formatter<T> implements AST.Visitor<String, T> {
+        private static final int SNIPPET_LIMIT = 60;
+
+        /**
+         * Describes where a node is for a diagnostic: the start of its source
+         * text and its position, or for a node that was not parsed from
+         * source, the node printed in full.
+         */
+        public String locate(AST.ASTNode node) {
+            String snippet = node.snippet(SNIPPET_LIMIT);
+            if (snippet == null) {
+                snippet = node.accept(this, null);
+            }
+            return node.hasPosition() ? snippet + " at " + node.position() : snippet;
+        }
 
         public String visit(AST.AddExp e, Env<T> env) {
             return "(+ %s)".formatted(
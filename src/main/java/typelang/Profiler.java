@@ -0,0 +1,195 @@
+package typelang;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class collects per-function call counts, inclusive and self time,
+ * and allocated bytes while the Evaluator runs, and reports them as a flat
+ * profile and as a call tree.
+ * <p>
+ * Functions are told apart by their body, so every closure created from the
+ * same lambda expression is attributed to the same entry. Lambdas bound by a
+ * define are reported under the defined name, other lambdas by their formals
+ * and where their body starts.
+ */
+public class Profiler {
+    private static final int MAX_TREE_DEPTH = 24;
+
+    private final com.sun.management.ThreadMXBean threads = allocationCounter();
+    private final Map<AST.Exp, Function> functions = new IdentityHashMap<>();
+    private final Deque<Frame> stack = new ArrayDeque<>();
+    private Node root = new Node(null);
+    private int anonymous = 0;
+
+    /**
+     * Remembers the name a function value is bound to by a define.
+     */
+    public void name(Value.FunVal f, String name) {
+        functions.computeIfAbsent(f.body(), body -> new Function(name)).name = name;
+    }
+
+    public void enter(Value.FunVal f) {
+        Function function = function(f);
+        Node parent = stack.isEmpty() ? root : stack.peek().node;
+        Node node = parent.children.computeIfAbsent(function, Node::new);
+        function.active++;
+        stack.push(new Frame(function, node, System.nanoTime(), allocatedBytes()));
+    }
+
+    public void exit() {
+        Frame frame = stack.pop();
+        long time = System.nanoTime() - frame.start;
+        long allocated = allocatedBytes() - frame.allocated;
+        long selfTime = time - frame.childTime;
+        long selfAllocated = allocated - frame.childAllocated;
+
+        Function function = frame.function;
+        function.calls++;
+        function.selfTime += selfTime;
+        function.allocated += selfAllocated;
+        // recursive activations are already inside the outermost one's time
+        if (--function.active == 0) {
+            function.time += time;
+        }
+
+        Node node = frame.node;
+        node.calls++;
+        node.time += time;
+        node.selfTime += selfTime;
+
+        Frame caller = stack.peek();
+        if (caller != null) {
+            caller.childTime += time;
+            caller.childAllocated += allocated;
+        }
+    }
+
+    public void reset() {
+        functions.values().forEach(Function::clear);
+        stack.clear();
+        root = new Node(null);
+    }
+
+    public void report(PrintWriter out) {
+        List<Function> flat = new ArrayList<>();
+        for (Function function : functions.values()) {
+            if (function.calls > 0) {
+                flat.add(function);
+            }
+        }
+        if (flat.isEmpty()) {
+            return;
+        }
+        flat.sort(Comparator.comparingLong((Function f) -> f.selfTime).reversed());
+
+        out.println("Flat profile:");
+        out.printf("%10s %12s %12s %12s  %s%n", "calls", "self ms", "total ms", "alloc KB", "function");
+        for (Function f : flat) {
+            out.printf("%10d %12.3f %12.3f %12.1f  %s%n",
+                    f.calls, f.selfTime / 1e6, f.time / 1e6, f.allocated / 1024.0, f.name);
+        }
+        out.println();
+        out.println("Call tree:");
+        out.printf("%10s %12s %12s  %s%n", "calls", "total ms", "self ms", "function");
+        for (Node child : root.sortedChildren()) {
+            report(out, child, 0);
+        }
+    }
+
+    private void report(PrintWriter out, Node node, int depth) {
+        out.printf("%10d %12.3f %12.3f  %s%s%n",
+                node.calls, node.time / 1e6, node.selfTime / 1e6, "  ".repeat(depth), node.function.name);
+        if (depth + 1 == MAX_TREE_DEPTH) {
+            if (!node.children.isEmpty()) {
+                out.printf("%36s  %s...%n", "", "  ".repeat(depth + 1));
+            }
+            return;
+        }
+        for (Node child : node.sortedChildren()) {
+            report(out, child, depth + 1);
+        }
+    }
+
+    private Function function(Value.FunVal f) {
+        Function function = functions.get(f.body());
+        if (function == null) {
+            String label = f.body().hasPosition() ? "@" + f.body().position() : "#" + ++anonymous;
+            function = new Function("(lambda (%s) ...)%s".formatted(String.join(" ", f.formals()), label));
+            functions.put(f.body(), function);
+        }
+        return function;
+    }
+
+    private long allocatedBytes() {
+        return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported()) {
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        }
+        return null;
+    }
+
+    private static class Function {
+        String name;
+        long calls;
+        long time;
+        long selfTime;
+        long allocated;
+        int active;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        void clear() {
+            calls = time = selfTime = allocated = 0;
+            active = 0;
+        }
+    }
+
+    private static class Node {
+        final Function function;
+        final Map<Function, Node> children = new IdentityHashMap<>();
+        long calls;
+        long time;
+        long selfTime;
+
+        Node(Function function) {
+            this.function = function;
+        }
+
+        List<Node> sortedChildren() {
+            List<Node> sorted = new ArrayList<>(children.values());
+            sorted.sort(Comparator.comparingLong((Node n) -> n.time).reversed());
+            return sorted;
+        }
+    }
+
+    private static class Frame {
+        final Function function;
+        final Node node;
+        final long start;
+        final long allocated;
+        long childTime;
+        long childAllocated;
+
+        Frame(Function function, Node node, long start, long allocated) {
+            this.function = function;
+            this.node = node;
+            this.start = start;
+            this.allocated = allocated;
+        }
+    }
+}
@@ -1,39 +1,150 @@
 package typelang;
 
+import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CodePointBuffer;
+import org.antlr.v4.runtime.CodePointCharStream;
+import org.antlr.v4.runtime.IntStream;
 import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.misc.Interval;
 import typelang.AST.Program;
 import typelang.parser.TypeLangLexer;
 import typelang.parser.TypeLangParser;
 
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 public class Reader implements AutoCloseable {
 
+    private static final int DECODE_CHUNK_SIZE = 8192;
+
     private final BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+    private final Map<String, Runnable> commands = new HashMap<>();
+    private final Map<String, Consumer<String>> argumentCommands = new HashMap<>();
+    private String prompt = "$ ";
+    // syntax errors the lexer and parser recovered from in the last parse
+    private int syntaxErrors;
 
     @SuppressWarnings("SameReturnValue")
     protected String getProgramDirectory() {
         return "src/main/java/typelang/examples/";
     }
 
+    /**
+     * Directory of serialized programs keyed by a hash of their source, or
+     * null to always parse.
+     */
+    protected Path getCacheDirectory() {
+        return Path.of("build/ast-cache/");
+    }
+
+    /**
+     * Sets the prompt shown before each line is read, or null for none.
+     */
+    public void setPrompt(String prompt) {
+        this.prompt = prompt;
+    }
+
+    /**
+     * Registers an action to run, instead of reading a program, whenever the
+     * input line is exactly the given command.
+     */
+    public void addCommand(String name, Runnable action) {
+        commands.put(name, action);
+    }
+
+    /**
+     * Registers an action to run, instead of reading a program, whenever the
+     * input line is the given command followed by an argument, which is
+     * passed to the action.
+     */
+    public void addCommand(String name, Consumer<String> action) {
+        argumentCommands.put(name, action);
+    }
+
     public Program read() throws IOException {
         String programText = readNextProgram();
         if (programText == null) {
             return null;
-        } else {
-            return parse(programText);
         }
+        String line = programText.strip();
+        Runnable command = commands.get(line);
+        if (command != null) {
+            command.run();
+            return new Program(List.of(), null);
+        }
+        int space = line.indexOf(' ');
+        Consumer<String> argumentCommand = space < 0 ? null : argumentCommands.get(line.substring(0, space));
+        if (argumentCommand != null) {
+            argumentCommand.accept(line.substring(space + 1).strip());
+            return new Program(List.of(), null);
+        }
+        return runFile(programText);
     }
 
     public Program parse(String programText) {
-        Lexer l = getLexer(CharStreams.fromString(programText));
-        TypeLangParser p = getParser(new org.antlr.v4.runtime.CommonTokenStream(l));
-        return p.program().ast;
+        return parse(CharStreams.fromString(programText));
+    }
+
+    public Program parse(CharStream programText) {
+        return parse(programText, 0);
+    }
+
+    private Program parse(CharStream programText, long bytes) {
+        Events.Parse event = new Events.Parse();
+        event.begin();
+        Program program = null;
+        syntaxErrors = 0;
+        try {
+            Lexer l = getLexer(programText);
+            l.addErrorListener(new BaseErrorListener() {
+                @Override
+                public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line,
+                                        int charPositionInLine, String msg, RecognitionException e) {
+                    syntaxErrors++;
+                }
+            });
+            TypeLangParser p = getParser(new org.antlr.v4.runtime.CommonTokenStream(l));
+            program = p.program().ast;
+            syntaxErrors += p.getNumberOfSyntaxErrors();
+            return program;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = programText.getSourceName();
+                event.characters = programText.size();
+                event.bytes = bytes;
+                event.definitions = program == null ? 0 : program.decls().size();
+                event.outcome = program == null || syntaxErrors > 0 ? Events.ERROR : Events.OK;
+                event.commit();
+            }
+        }
     }
 
     protected Lexer getLexer(CharStream s) {
@@ -45,33 +156,172 @@ public class Reader implements AutoCloseable {
     }
 
     protected String readNextProgram() throws IOException {
-        System.out.print("$ ");
-        String programText = br.readLine();
-        if (programText == null) {
-            return null;
-        } else {
-            return runFile(programText);
+        if (prompt != null) {
+            System.out.print(prompt);
         }
+        return br.readLine();
     }
 
-    protected String runFile(String programText) throws IOException {
+    protected Program runFile(String programText) throws IOException {
         if (programText.startsWith("run ")) {
-            programText = readFile(getProgramDirectory() + programText.substring(4));
+            return readFile(getProgramDirectory() + programText.substring(4));
+        }
+        return parse(programText);
+    }
+
+    /**
+     * Reads a program from the serialized form cached for this exact source,
+     * or parses it and caches the result for the next time.
+     */
+    private Program readFile(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] digest = digest(bytes);
+            Path cached = cacheEntry(digest);
+            if (cached != null && Files.isRegularFile(cached)) {
+                Events.Parse event = new Events.Parse();
+                event.begin();
+                try (InputStream in = Files.newInputStream(cached)) {
+                    Program program = Serializer.read(in, new CachedSource(fileName, digest));
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.source = fileName;
+                        event.bytes = bytes.capacity();
+                        event.definitions = program.decls().size();
+                        event.outcome = Events.CACHED;
+                        event.commit();
+                    }
+                    return program;
+                } catch (IOException e) {
+                    // unreadable or from an older format, parse it again below
+                }
+            }
+            Program program = parse(decode(bytes, fileName), bytes.capacity());
+            // a program repaired by error recovery must be parsed, and its
+            // errors reported, every time it is run
+            if (cached != null && syntaxErrors == 0) {
+                writeCacheEntry(cached, program);
+            }
+            return program;
         }
-        return programText;
     }
 
-    private String readFile(String fileName) throws IOException {
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            StringBuilder sb = new StringBuilder();
-            String line = br.readLine();
+    private Path cacheEntry(byte[] digest) {
+        Path directory = getCacheDirectory();
+        if (directory == null || digest == null) {
+            return null;
+        }
+        return directory.resolve(HexFormat.of().formatHex(digest) + ".v" + Serializer.VERSION + ".ast");
+    }
+
+    private static byte[] digest(ByteBuffer bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(bytes.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private void writeCacheEntry(Path cached, Program program) {
+        Path temp = null;
+        try {
+            Files.createDirectories(cached.getParent());
+            temp = Files.createTempFile(cached.getParent(), "ast", ".tmp");
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                Serializer.write(program, out);
+            }
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            temp = null;
+        } catch (IOException | IllegalArgumentException e) {
+            // the cache is only an optimization, so running the program goes ahead without it
+        } finally {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    // nothing more to be done, the cache directory can be cleared by hand
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the mapped file straight into the code point buffer backing the
+     * lexer's input, so a large program is only copied once.
+     */
+    private static CharStream decode(ByteBuffer bytes, String fileName) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CodePointBuffer.Builder code_points = CodePointBuffer.builder(bytes.remaining());
+        CharBuffer chunk = CharBuffer.allocate(DECODE_CHUNK_SIZE);
+        CoderResult result;
+        do {
+            result = decoder.decode(bytes, chunk, true);
+            chunk.flip();
+            code_points.append(chunk);
+            chunk.clear();
+        } while (result.isOverflow());
+        decoder.flush(chunk);
+        chunk.flip();
+        code_points.append(chunk);
+        return CodePointCharStream.fromBuffer(code_points.build(), fileName);
+    }
+
+    /**
+     * The source positions recorded by the parser refer into the stream the
+     * program was parsed from.
+     */
+    public static AST.Source source(CharStream chars) {
+        String name = chars.getSourceName();
+        String sourceName = name == null || name.equals(IntStream.UNKNOWN_SOURCE_NAME) ? null : name;
+        return new AST.Source() {
+            public String name() {
+                return sourceName;
+            }
+
+            public String text(int start, int stop) {
+                return chars.getText(Interval.of(start, stop));
+            }
+        };
+    }
+
+    /**
+     * The source of a program read from the cache. The file is only read
+     * again, and decoded, if a diagnostic needs to quote it, and only if it
+     * still holds the text the program was parsed from.
+     */
+    private static class CachedSource implements AST.Source {
+        private final String fileName;
+        private final byte[] digest;
+        private AST.Source decoded = null;
+        private boolean changed = false;
+
+        CachedSource(String fileName, byte[] digest) {
+            this.fileName = fileName;
+            this.digest = digest;
+        }
+
+        public String name() {
+            return fileName;
+        }
 
-            while (line != null) {
-                sb.append(line);
-                sb.append(System.lineSeparator());
-                line = br.readLine();
+        public synchronized String text(int start, int stop) {
+            if (decoded == null && !changed) {
+                try {
+                    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Path.of(fileName)));
+                    if (Arrays.equals(digest(bytes), digest)) {
+                        decoded = source(decode(bytes, fileName));
+                    } else {
+                        changed = true;
+                    }
+                } catch (IOException e) {
+                    changed = true;
+                }
             }
-            return sb.toString();
+            return decoded == null ? null : decoded.text(start, stop);
         }
     }
 
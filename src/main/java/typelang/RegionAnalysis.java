@@ -0,0 +1,185 @@
+package typelang;
+
+import typelang.AST.*;
+import typelang.Type.*;
+
+import java.util.List;
+
+/**
+ * This class decides whether a let expression or a function body can be
+ * evaluated in a heap region: whether every cell allocated while it runs is
+ * unreachable once it returns, so that the heap can release them all at once.
+ * <p>
+ * That holds when the scope makes no calls and creates no closures, so every
+ * allocation is its own and nothing can hold on to it, when no assignment in
+ * it stores a value that may contain a reference, and when its own value
+ * cannot contain a reference. The types come from the Checker, which records
+ * them on the nodes; a scope that has not been checked is never a region.
+ */
+public class RegionAnalysis implements Visitor<Boolean, Void> {
+    private static final RegionAnalysis instance = new RegionAnalysis();
+
+    private RegionAnalysis() {
+    }
+
+    /**
+     * Whether scope, whose value has the given type, can run in a region.
+     */
+    public static boolean isRegion(Exp scope, Type type) {
+        return type != null && !mayHoldRef(type) && scope.accept(instance, null);
+    }
+
+    static boolean mayHoldRef(Type t) {
+        if (t instanceof RefT || t instanceof ErrorT || t instanceof UnknownT) {
+            return true;
+        }
+        if (t instanceof ListT lt) {
+            return mayHoldRef(lt.fst());
+        }
+        if (t instanceof PairT pt) {
+            return mayHoldRef(pt.fst()) || mayHoldRef(pt.snd());
+        }
+        return false;
+    }
+
+    private boolean all(List<Exp> es) {
+        for (Exp e : es) {
+            if (!e.accept(this, null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Boolean visit(CallExp e, Env<Void> env) {
+        return false;
+    }
+
+    @Override
+    public Boolean visit(LambdaExp e, Env<Void> env) {
+        return false;
+    }
+
+    @Override
+    public Boolean visit(AssignExp e, Env<Void> env) {
+        Type stored = e.storedType();
+        return stored != null && !mayHoldRef(stored)
+                && e.lhs_exp().accept(this, null) && e.rhs_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(LetExp e, Env<Void> env) {
+        return all(e.value_exps()) && e.body().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(VarExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(AddExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(SubExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(MultExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(DivExp e, Env<Void> env) {
+        return all(e.all());
+    }
+
+    @Override
+    public Boolean visit(UnitExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(NumExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(BoolExp e, Env<Void> env) {
+        return true;
+    }
+
+    @Override
+    public Boolean visit(Program p, Env<Void> env) {
+        return false;
+    }
+
+    @Override
+    public Boolean visit(DefineDecl d, Env<Void> env) {
+        return false;
+    }
+
+    @Override
+    public Boolean visit(IfExp e, Env<Void> env) {
+        return e.conditional().accept(this, null) && e.then_exp().accept(this, null) && e.else_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(LessExp e, Env<Void> env) {
+        return e.first_exp().accept(this, null) && e.second_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(EqualExp e, Env<Void> env) {
+        return e.first_exp().accept(this, null) && e.second_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(GreaterExp e, Env<Void> env) {
+        return e.first_exp().accept(this, null) && e.second_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(CarExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(CdrExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(ConsExp e, Env<Void> env) {
+        return e.fst().accept(this, null) && e.snd().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(ListExp e, Env<Void> env) {
+        return all(e.elems());
+    }
+
+    @Override
+    public Boolean visit(NullExp e, Env<Void> env) {
+        return e.arg().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(RefExp e, Env<Void> env) {
+        return e.value_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(DerefExp e, Env<Void> env) {
+        return e.loc_exp().accept(this, null);
+    }
+
+    @Override
+    public Boolean visit(FreeExp e, Env<Void> env) {
+        return e.value_exp().accept(this, null);
+    }
+}
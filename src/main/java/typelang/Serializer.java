@@ -0,0 +1,564 @@
+package typelang;
+
+import typelang.AST.*;
+import typelang.Type.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class writes a program's abstract syntax tree, including its type
+ * annotations, in a compact binary form, and reads it back without going
+ * through the parser.
+ * <p>
+ * Every node is a one byte tag followed by its children. Counts and string
+ * table indices are variable-length integers, every identifier is written
+ * once and referred to by index afterwards, and whole numbers are stored
+ * as integers rather than doubles. A node's source position follows its
+ * children.
+ */
+public class Serializer implements Visitor<Void, Void> {
+    static final int MAGIC = 0x544C4153; // "TLAS"
+    static final int VERSION = 2;
+
+    private static final int NONE = 0;
+    private static final int ADD = 1;
+    private static final int SUB = 2;
+    private static final int MULT = 3;
+    private static final int DIV = 4;
+    private static final int UNIT = 5;
+    private static final int NUM = 6;
+    private static final int INT = 7;
+    private static final int BOOL = 8;
+    private static final int VAR = 9;
+    private static final int LET = 10;
+    private static final int DEFINE = 11;
+    private static final int LAMBDA = 12;
+    private static final int CALL = 13;
+    private static final int IF = 14;
+    private static final int LESS = 15;
+    private static final int EQUAL = 16;
+    private static final int GREATER = 17;
+    private static final int CAR = 18;
+    private static final int CDR = 19;
+    private static final int CONS = 20;
+    private static final int LIST = 21;
+    private static final int NULL = 22;
+    private static final int REF = 23;
+    private static final int ASSIGN = 24;
+    private static final int DEREF = 25;
+    private static final int FREE = 26;
+
+    private static final int UNIT_T = 1;
+    private static final int BOOL_T = 2;
+    private static final int NUM_T = 3;
+    private static final int LIST_T = 4;
+    private static final int PAIR_T = 5;
+    private static final int REF_T = 6;
+    private static final int FUNC_T = 7;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+
+    Serializer(DataOutputStream out) {
+        this.out = out;
+    }
+
+    public static void write(Program p, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        try {
+            p.accept(new Serializer(out), null);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.flush();
+    }
+
+    public static Program read(InputStream is) throws IOException {
+        return read(is, null);
+    }
+
+    /**
+     * Reads a program, with its nodes' positions referring into the given
+     * source.
+     */
+    public static Program read(InputStream is, AST.Source source) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a serialized TypeLang program");
+        }
+        return new Decoder(in, source).program();
+    }
+
+    private void tag(int tag) {
+        try {
+            out.writeByte(tag);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void count(int n) {
+        try {
+            // unsigned LEB128: seven bits per byte, high bit set on all but the last
+            while ((n & ~0x7F) != 0) {
+                out.writeByte((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            out.writeByte(n);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void string(String s) {
+        Integer index = strings.get(s);
+        if (index != null) {
+            count(index);
+            return;
+        }
+        count(strings.size());
+        strings.put(s, strings.size());
+        try {
+            out.writeUTF(s);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void exp(Exp e) {
+        if (e == null) {
+            tag(NONE);
+        } else {
+            e.accept(this, null);
+            position(e);
+        }
+    }
+
+    private void position(ASTNode node) {
+        if (!node.hasPosition()) {
+            count(0);
+            return;
+        }
+        count(node.start() + 1);
+        count(node.stop() - node.start() + 1);
+        count(node.line());
+        count(node.column());
+    }
+
+    private void exps(List<Exp> es) {
+        count(es.size());
+        for (Exp e : es) {
+            exp(e);
+        }
+    }
+
+    void type(Type t) {
+        if (t instanceof UnitT) {
+            tag(UNIT_T);
+        } else if (t instanceof BoolT) {
+            tag(BOOL_T);
+        } else if (t instanceof NumT) {
+            tag(NUM_T);
+        } else if (t instanceof ListT lt) {
+            // only the element type: a list type's tail is the list type itself
+            tag(LIST_T);
+            type(lt.fst());
+        } else if (t instanceof PairT pt) {
+            tag(PAIR_T);
+            type(pt.fst());
+            type(pt.snd());
+        } else if (t instanceof RefT rt) {
+            tag(REF_T);
+            type(rt.nestType());
+        } else if (t instanceof FuncT ft) {
+            tag(FUNC_T);
+            count(ft.argTypes().size());
+            for (Type argType : ft.argTypes()) {
+                type(argType);
+            }
+            type(ft.returnType());
+        } else {
+            throw new IllegalArgumentException("Cannot serialize type " + t);
+        }
+    }
+
+    private void types(List<Type> ts) {
+        count(ts.size());
+        for (Type t : ts) {
+            type(t);
+        }
+    }
+
+    void strings(List<String> ss) {
+        count(ss.size());
+        for (String s : ss) {
+            string(s);
+        }
+    }
+
+    @Override
+    public Void visit(Program p, Env<Void> env) {
+        count(p.decls().size());
+        for (DefineDecl d : p.decls()) {
+            exp(d);
+        }
+        exp(p.e());
+        return null;
+    }
+
+    @Override
+    public Void visit(AddExp e, Env<Void> env) {
+        tag(ADD);
+        exps(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(SubExp e, Env<Void> env) {
+        tag(SUB);
+        exps(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(MultExp e, Env<Void> env) {
+        tag(MULT);
+        exps(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(DivExp e, Env<Void> env) {
+        tag(DIV);
+        exps(e.all());
+        return null;
+    }
+
+    @Override
+    public Void visit(UnitExp e, Env<Void> env) {
+        tag(UNIT);
+        return null;
+    }
+
+    @Override
+    public Void visit(NumExp e, Env<Void> env) {
+        double v = e.v();
+        try {
+            if (v == (int) v && Double.doubleToRawLongBits(v) != Double.doubleToRawLongBits(-0.0)) {
+                tag(INT);
+                int i = (int) v;
+                count((i << 1) ^ (i >> 31)); // zig-zag keeps small negative numbers short
+            } else {
+                tag(NUM);
+                out.writeDouble(v);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visit(BoolExp e, Env<Void> env) {
+        tag(BOOL);
+        tag(e.b() ? 1 : 0);
+        return null;
+    }
+
+    @Override
+    public Void visit(VarExp e, Env<Void> env) {
+        tag(VAR);
+        string(e.name());
+        return null;
+    }
+
+    @Override
+    public Void visit(LetExp e, Env<Void> env) {
+        tag(LET);
+        strings(e.names());
+        types(e.varTypes());
+        exps(e.value_exps());
+        exp(e.body());
+        return null;
+    }
+
+    @Override
+    public Void visit(DefineDecl d, Env<Void> env) {
+        tag(DEFINE);
+        string(d.name());
+        type(d.type());
+        exp(d.value_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(LambdaExp e, Env<Void> env) {
+        tag(LAMBDA);
+        strings(e.formals());
+        types(e.formal_types());
+        exp(e.body());
+        return null;
+    }
+
+    @Override
+    public Void visit(CallExp e, Env<Void> env) {
+        tag(CALL);
+        exp(e.operator());
+        exps(e.operands());
+        return null;
+    }
+
+    @Override
+    public Void visit(IfExp e, Env<Void> env) {
+        tag(IF);
+        exp(e.conditional());
+        exp(e.then_exp());
+        exp(e.else_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(LessExp e, Env<Void> env) {
+        tag(LESS);
+        exp(e.first_exp());
+        exp(e.second_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(EqualExp e, Env<Void> env) {
+        tag(EQUAL);
+        exp(e.first_exp());
+        exp(e.second_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(GreaterExp e, Env<Void> env) {
+        tag(GREATER);
+        exp(e.first_exp());
+        exp(e.second_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(CarExp e, Env<Void> env) {
+        tag(CAR);
+        exp(e.arg());
+        return null;
+    }
+
+    @Override
+    public Void visit(CdrExp e, Env<Void> env) {
+        tag(CDR);
+        exp(e.arg());
+        return null;
+    }
+
+    @Override
+    public Void visit(ConsExp e, Env<Void> env) {
+        tag(CONS);
+        exp(e.fst());
+        exp(e.snd());
+        return null;
+    }
+
+    @Override
+    public Void visit(ListExp e, Env<Void> env) {
+        tag(LIST);
+        type(e.type());
+        exps(e.elems());
+        return null;
+    }
+
+    @Override
+    public Void visit(NullExp e, Env<Void> env) {
+        tag(NULL);
+        exp(e.arg());
+        return null;
+    }
+
+    @Override
+    public Void visit(RefExp e, Env<Void> env) {
+        tag(REF);
+        type(e.type());
+        exp(e.value_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(AssignExp e, Env<Void> env) {
+        tag(ASSIGN);
+        exp(e.lhs_exp());
+        exp(e.rhs_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(DerefExp e, Env<Void> env) {
+        tag(DEREF);
+        exp(e.loc_exp());
+        return null;
+    }
+
+    @Override
+    public Void visit(FreeExp e, Env<Void> env) {
+        tag(FREE);
+        exp(e.value_exp());
+        return null;
+    }
+
+    /**
+     * Rebuilds the tree written by a Serializer, mirroring its encoding.
+     */
+    static class Decoder {
+        private final DataInputStream in;
+        private final AST.Source source;
+        private final List<String> strings = new ArrayList<>();
+
+        Decoder(DataInputStream in, AST.Source source) {
+            this.in = in;
+            this.source = source;
+        }
+
+        Program program() throws IOException {
+            int size = count();
+            List<DefineDecl> decls = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                if (!(exp() instanceof DefineDecl d)) {
+                    throw new IOException("Expected a definition");
+                }
+                decls.add(d);
+            }
+            return new Program(decls, exp());
+        }
+
+        int count() throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                n |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new IOException("Malformed count");
+        }
+
+        String string() throws IOException {
+            int index = count();
+            if (index == strings.size()) {
+                strings.add(in.readUTF());
+            } else if (index > strings.size()) {
+                throw new IOException("Malformed string table");
+            }
+            return strings.get(index);
+        }
+
+        List<String> strings() throws IOException {
+            int size = count();
+            List<String> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(string());
+            }
+            return result;
+        }
+
+        Type type() throws IOException {
+            int tag = in.readUnsignedByte();
+            return switch (tag) {
+                case UNIT_T -> UnitT.getInstance();
+                case BOOL_T -> BoolT.getInstance();
+                case NUM_T -> NumT.getInstance();
+                case LIST_T -> new ListT(type());
+                case PAIR_T -> new PairT(type(), type());
+                case REF_T -> new RefT(type());
+                case FUNC_T -> new FuncT(types(), type());
+                default -> throw new IOException("Unknown type tag " + tag);
+            };
+        }
+
+        private List<Type> types() throws IOException {
+            int size = count();
+            List<Type> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(type());
+            }
+            return result;
+        }
+
+        private List<Exp> exps() throws IOException {
+            int size = count();
+            List<Exp> result = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(exp());
+            }
+            return result;
+        }
+
+        Exp exp() throws IOException {
+            Exp e = node();
+            if (e != null) {
+                int start = count() - 1;
+                if (start >= 0) {
+                    int stop = start + count() - 1;
+                    e.at(source, start, stop, count(), count());
+                }
+            }
+            return e;
+        }
+
+        private Exp node() throws IOException {
+            int tag = in.readUnsignedByte();
+            return switch (tag) {
+                case NONE -> null;
+                case ADD -> new AddExp(exps());
+                case SUB -> new SubExp(exps());
+                case MULT -> new MultExp(exps());
+                case DIV -> new DivExp(exps());
+                case UNIT -> new UnitExp();
+                case NUM -> new NumExp(in.readDouble());
+                case INT -> {
+                    int zigzag = count();
+                    yield new NumExp((zigzag >>> 1) ^ -(zigzag & 1));
+                }
+                case BOOL -> new BoolExp(in.readUnsignedByte() != 0);
+                case VAR -> new VarExp(string());
+                case LET -> new LetExp(strings(), types(), exps(), exp());
+                case DEFINE -> new DefineDecl(string(), type(), exp());
+                case LAMBDA -> new LambdaExp(strings(), types(), exp());
+                case CALL -> new CallExp(exp(), exps());
+                case IF -> new IfExp(exp(), exp(), exp());
+                case LESS -> new LessExp(exp(), exp());
+                case EQUAL -> new EqualExp(exp(), exp());
+                case GREATER -> new GreaterExp(exp(), exp());
+                case CAR -> new CarExp(exp());
+                case CDR -> new CdrExp(exp());
+                case CONS -> new ConsExp(exp(), exp());
+                case LIST -> new ListExp(type(), exps());
+                case NULL -> new NullExp(exp());
+                case REF -> {
+                    Type type = type();
+                    yield new RefExp(exp(), type);
+                }
+                case ASSIGN -> new AssignExp(exp(), exp());
+                case DEREF -> new DerefExp(exp());
+                case FREE -> new FreeExp(exp());
+                default -> throw new IOException("Unknown node tag " + tag);
+            };
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package typelang;
+
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+
+import static typelang.AST.*;
+
+/**
+ * The superclass of the generated parsers, so the actions of every grammar,
+ * whether it is generated on its own or imported into a larger one, can
+ * record where a node came from.
+ */
+public abstract class SourceParser extends Parser {
+    private Source source = null;
+
+    protected SourceParser(TokenStream input) {
+        super(input);
+    }
+
+    /**
+     * Records on a node the source text from the start token of the rule
+     * that built it to the last token matched so far.
+     */
+    protected <N extends ASTNode> N pos(N node, Token start) {
+        Token stop = _input.LT(-1);
+        if (stop == null || stop.getTokenIndex() < start.getTokenIndex()) {
+            stop = start;
+        }
+        if (source == null) {
+            source = Reader.source(_input.getTokenSource().getInputStream());
+        }
+        node.at(source, start.getStartIndex(), stop.getStopIndex(), start.getLine(), start.getCharPositionInLine() + 1);
+        return node;
+    }
+}
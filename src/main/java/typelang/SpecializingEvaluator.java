@@ -0,0 +1,522 @@
+package typelang;
+
+import java.util.List;
+
+import static typelang.AST.*;
+import static typelang.Value.BoolVal;
+import static typelang.Value.NumVal;
+
+/**
+ * An Evaluator that runs expressions as trees of executable nodes which
+ * rewrite themselves as they observe the program running. A node starts out
+ * uninitialized and replaces itself in its parent with a faster one for what
+ * it has seen: a variable that turns out to be global with one that caches
+ * its value for as long as the global environment does not change, an
+ * addition of two operands with one that has no loop, and a call that has
+ * always called the same function with one that goes straight to that
+ * function's body. When what a specialized node assumed no longer holds, it
+ * specializes again or, if that keeps happening, replaces itself with a
+ * general one.
+ * <p>
+ * Nodes cover the expressions that make up the hot paths of most programs;
+ * any other expression is left to the Evaluator. Its semantics, including
+ * the dynamic errors, are those of the Evaluator.
+ */
+public class SpecializingEvaluator extends Evaluator {
+    static final int MAX_RESPECIALIZATIONS = 3;
+
+    private final Printer.Formatter<Value> ts = new Printer.Formatter<>();
+    long specializations = 0;
+    long deoptimizations = 0;
+
+    public SpecializingEvaluator() {
+    }
+
+    public SpecializingEvaluator(Heap heap) {
+        super(heap);
+    }
+
+    @Override
+    Evaluator create(Heap heap) {
+        return new SpecializingEvaluator(heap);
+    }
+
+    @Override
+    public Value visit(Program p, Env<Value> env) {
+        try {
+            for (DefineDecl d : p.decls()) {
+                d.accept(this, globalEnv);
+            }
+            return new Root(this, node(p.e())).execute(globalEnv);
+        } catch (ClassCastException e) {
+            return new Value.DynamicError(e.getMessage());
+        }
+    }
+
+    @Override
+    public Value visit(CallExp e, Env<Value> env) {
+        return root(e).execute(env);
+    }
+
+    /**
+     * The node tree for a function body, or for a call the Evaluator came
+     * across, built the first time it runs. It is kept on the expression, so
+     * it lives as long as the program does; the nodes refer to this
+     * evaluator, so a fork builds trees of its own.
+     */
+    private Node root(Exp e) {
+        if (e._specialized instanceof Root root && root.owner == this) {
+            return root;
+        }
+        Root root = new Root(this, node(e));
+        e._specialized = root;
+        return root;
+    }
+
+    private Node node(Exp e) {
+        return switch (e) {
+            case NumExp n -> new Constant(new NumVal(n.v()));
+            case BoolExp b -> new Constant(new BoolVal(b.b()));
+            case VarExp v -> new UninitializedVar(v.name());
+            case AddExp add -> new UninitializedAdd(nodes(add.all()));
+            case SubExp sub -> new Arithmetic('-', nodes(sub.all()));
+            case MultExp mult -> new Arithmetic('*', nodes(mult.all()));
+            case DivExp div -> new Arithmetic('/', nodes(div.all()));
+            case LessExp less -> new Comparison('<', node(less.first_exp()), node(less.second_exp()));
+            case EqualExp equal -> new Comparison('=', node(equal.first_exp()), node(equal.second_exp()));
+            case GreaterExp greater -> new Comparison('>', node(greater.first_exp()), node(greater.second_exp()));
+            case IfExp ifExp -> new If(ifExp, node(ifExp.conditional()), node(ifExp.then_exp()), node(ifExp.else_exp()));
+            case LetExp let -> new Let(let);
+            case LambdaExp lambda -> new Lambda(lambda);
+            case CallExp call -> {
+                Node[] children = new Node[call.operands().size() + 1];
+                children[0] = node(call.operator());
+                for (int i = 1; i < children.length; i++) {
+                    children[i] = node(call.operands().get(i - 1));
+                }
+                yield new UninitializedCall(call, children);
+            }
+            default -> new Delegate(e);
+        };
+    }
+
+    private Node[] nodes(List<Exp> es) {
+        Node[] nodes = new Node[es.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = node(es.get(i));
+        }
+        return nodes;
+    }
+
+    abstract static class Node {
+        final Node[] children;
+        Node parent = null;
+
+        Node(Node... children) {
+            this.children = children;
+            for (Node child : children) {
+                child.parent = this;
+            }
+        }
+
+        abstract Value execute(Env<Value> env);
+
+        /**
+         * Puts the given node in this one's place in the tree, and returns it.
+         */
+        <N extends Node> N replace(N node) {
+            Node[] siblings = parent.children;
+            for (int i = 0; i < siblings.length; i++) {
+                if (siblings[i] == this) {
+                    siblings[i] = node;
+                }
+            }
+            node.parent = parent;
+            return node;
+        }
+    }
+
+    private static final class Root extends Node {
+        private final SpecializingEvaluator owner;
+
+        Root(SpecializingEvaluator owner, Node body) {
+            super(body);
+            this.owner = owner;
+        }
+
+        Value execute(Env<Value> env) {
+            return children[0].execute(env);
+        }
+    }
+
+    private static final class Constant extends Node {
+        private final Value value;
+
+        Constant(Value value) {
+            this.value = value;
+        }
+
+        Value execute(Env<Value> env) {
+            return value;
+        }
+    }
+
+    /**
+     * An expression the nodes do not cover, evaluated by the Evaluator.
+     */
+    private final class Delegate extends Node {
+        private final Exp exp;
+
+        Delegate(Exp exp) {
+            this.exp = exp;
+        }
+
+        Value execute(Env<Value> env) {
+            return exp.accept(SpecializingEvaluator.this, env);
+        }
+    }
+
+    /**
+     * A variable is global at a given place in the program if it is not
+     * bound in front of the global environment the first time it is read,
+     * since the variables bound in between are the same every time.
+     */
+    private final class UninitializedVar extends Node {
+        private final String name;
+
+        UninitializedVar(String name) {
+            this.name = name;
+        }
+
+        Value execute(Env<Value> env) {
+            specializations++;
+            if (env.bindsBefore(name, globalEnv)) {
+                return replace(new LocalVar(name)).execute(env);
+            }
+            return replace(new GlobalVar(name)).execute(env);
+        }
+    }
+
+    private static final class LocalVar extends Node {
+        private final String name;
+
+        LocalVar(String name) {
+            this.name = name;
+        }
+
+        Value execute(Env<Value> env) {
+            return env.get(name);
+        }
+    }
+
+    /**
+     * A global variable, whose value is looked up again only when a define
+     * has changed the global environment.
+     */
+    private final class GlobalVar extends Node {
+        private final String name;
+        private Env<Value> cachedEnv = null;
+        private Value cachedValue = null;
+
+        GlobalVar(String name) {
+            this.name = name;
+        }
+
+        Value execute(Env<Value> env) {
+            if (cachedEnv != globalEnv) {
+                cachedValue = globalEnv.get(name);
+                cachedEnv = globalEnv;
+            }
+            return cachedValue;
+        }
+    }
+
+    private final class UninitializedAdd extends Node {
+        UninitializedAdd(Node[] operands) {
+            super(operands);
+        }
+
+        Value execute(Env<Value> env) {
+            specializations++;
+            if (children.length == 2) {
+                return replace(new Add2(children[0], children[1])).execute(env);
+            }
+            return replace(new Arithmetic('+', children)).execute(env);
+        }
+    }
+
+    private static final class Add2 extends Node {
+        Add2(Node left, Node right) {
+            super(left, right);
+        }
+
+        Value execute(Env<Value> env) {
+            double left = ((NumVal) children[0].execute(env)).v();
+            return new NumVal(left + ((NumVal) children[1].execute(env)).v());
+        }
+    }
+
+    private static final class Arithmetic extends Node {
+        private final char operator;
+
+        Arithmetic(char operator, Node[] operands) {
+            super(operands);
+            this.operator = operator;
+        }
+
+        Value execute(Env<Value> env) {
+            double result = switch (operator) {
+                case '+' -> 0;
+                case '*' -> 1;
+                default -> ((NumVal) children[0].execute(env)).v();
+            };
+            for (int i = operator == '+' || operator == '*' ? 0 : 1; i < children.length; i++) {
+                double operand = ((NumVal) children[i].execute(env)).v();
+                result = switch (operator) {
+                    case '+' -> result + operand;
+                    case '-' -> result - operand;
+                    case '*' -> result * operand;
+                    default -> result / operand;
+                };
+            }
+            return new NumVal(result);
+        }
+    }
+
+    private static final class Comparison extends Node {
+        private final char operator;
+
+        Comparison(char operator, Node first, Node second) {
+            super(first, second);
+            this.operator = operator;
+        }
+
+        Value execute(Env<Value> env) {
+            double first = ((NumVal) children[0].execute(env)).v();
+            double second = ((NumVal) children[1].execute(env)).v();
+            return new BoolVal(switch (operator) {
+                case '<' -> first < second;
+                case '>' -> first > second;
+                default -> first == second;
+            });
+        }
+    }
+
+    private final class If extends Node {
+        private final IfExp exp;
+
+        If(IfExp exp, Node conditional, Node then_node, Node else_node) {
+            super(conditional, then_node, else_node);
+            this.exp = exp;
+        }
+
+        Value execute(Env<Value> env) {
+            if (!(children[0].execute(env) instanceof BoolVal condition)) {
+                return new Value.DynamicError("Condition not a boolean in expression " + ts.locate(exp));
+            }
+            return children[condition.v() ? 1 : 2].execute(env);
+        }
+    }
+
+    /**
+     * A let, whose children are the values it binds followed by its body.
+     * The value of a reference kept in a local cell is its RefExp's operand.
+     */
+    private final class Let extends Node {
+        private final LetExp exp;
+        private final String[] names;
+        private final boolean[] cells;
+
+        Let(LetExp exp) {
+            super(children(exp));
+            this.exp = exp;
+            this.names = exp.names().toArray(new String[0]);
+            this.cells = new boolean[names.length];
+            for (int i = 0; i < names.length; i++) {
+                cells[i] = exp.isLocalCell(i);
+            }
+        }
+
+        Value execute(Env<Value> env) {
+            if (!regions || !exp.isRegion()) {
+                return value(env);
+            }
+            int mark = heap.mark();
+            try {
+                return value(env);
+            } finally {
+                heap.release(mark);
+            }
+        }
+
+        private Value value(Env<Value> env) {
+            Value[] values = new Value[names.length];
+            for (int i = 0; i < names.length; i++) {
+                Value value = children[i].execute(env);
+                values[i] = cells[i] ? new Value.CellVal(value) : value;
+            }
+            Env<Value> new_env = env;
+            for (int i = 0; i < names.length; i++) {
+                new_env = new_env.extend(names[i], values[i]);
+            }
+            return children[names.length].execute(new_env);
+        }
+    }
+
+    private Node[] children(LetExp let) {
+        List<Exp> value_exps = let.value_exps();
+        Node[] children = new Node[value_exps.size() + 1];
+        for (int i = 0; i < value_exps.size(); i++) {
+            Exp value_exp = value_exps.get(i);
+            children[i] = node(let.isLocalCell(i) ? ((RefExp) value_exp).value_exp() : value_exp);
+        }
+        children[value_exps.size()] = node(let.body());
+        return children;
+    }
+
+    private final class Lambda extends Node {
+        private final LambdaExp exp;
+
+        Lambda(LambdaExp exp) {
+            this.exp = exp;
+        }
+
+        Value execute(Env<Value> env) {
+            return new Value.FunVal(Env.ArrayEnv.capture(env, exp.freeVariables()), exp.formals(), exp.body(),
+                    regions && exp.isRegion());
+        }
+    }
+
+    /**
+     * A call, whose children are its operator followed by its operands.
+     */
+    private abstract class Call extends Node {
+        final CallExp exp;
+
+        Call(CallExp exp, Node[] children) {
+            super(children);
+            this.exp = exp;
+        }
+
+        Monomorphic specialize(Value.FunVal operator, int respecializations) {
+            specializations++;
+            return replace(new Monomorphic(exp, children, operator, respecializations));
+        }
+
+        Value[] operands(Env<Value> env) {
+            Value[] actuals = new Value[children.length - 1];
+            for (int i = 0; i < actuals.length; i++) {
+                actuals[i] = children[i + 1].execute(env);
+            }
+            return actuals;
+        }
+
+        /**
+         * Calls operator as the Evaluator does, finding its entry in the
+         * inline cache of the call site.
+         */
+        Value call(Value result, Env<Value> env) {
+            if (!(result instanceof Value.FunVal operator)) {
+                return new Value.DynamicError("Operator not a function in call " + ts.locate(exp));
+            }
+            Value[] actuals = operands(env);
+            Env<Value> base = entry(exp, operator);
+            if (base == null) {
+                return new Value.DynamicError("Argument mismatch in call " + ts.locate(exp));
+            }
+            return invoke(operator, base, root(operator.body()), actuals);
+        }
+
+        Value invoke(Value.FunVal operator, Env<Value> base, Node body, Value[] actuals) {
+            List<String> formals = operator.formals();
+            Env<Value> fun_env = base;
+            for (int index = 0; index < actuals.length; index++) {
+                fun_env = fun_env.extend(formals.get(index), actuals[index]);
+            }
+
+            int mark = operator.region() ? heap.mark() : -1;
+            if (profiler != null) {
+                profiler.enter(operator);
+            }
+            try {
+                return body.execute(fun_env);
+            } finally {
+                if (profiler != null) {
+                    profiler.exit();
+                }
+                if (mark >= 0) {
+                    heap.release(mark);
+                }
+            }
+        }
+    }
+
+    private final class UninitializedCall extends Call {
+        UninitializedCall(CallExp exp, Node[] children) {
+            super(exp, children);
+        }
+
+        Value execute(Env<Value> env) {
+            Value result = children[0].execute(env);
+            if (!(result instanceof Value.FunVal operator) || operator.formals().size() != children.length - 1) {
+                return call(result, env);
+            }
+            return specialize(operator, 0).execute(operator, env);
+        }
+    }
+
+    /**
+     * A call that has called one function, with one global environment,
+     * since it was last specialized. Its entry environment and body are kept
+     * in the node, and each call through them counts as a hit of the call
+     * site's inline cache. When the function or the global environment
+     * changes, the node specializes again, unless it has done so too often
+     * already.
+     */
+    private final class Monomorphic extends Call {
+        private final Value.FunVal target;
+        private final Env<Value> targetGlobalEnv;
+        private final Env<Value> base;
+        private final Node body;
+        private final InlineCache cache;
+        private final int respecializations;
+
+        Monomorphic(CallExp exp, Node[] children, Value.FunVal target, int respecializations) {
+            super(exp, children);
+            this.target = target;
+            this.targetGlobalEnv = globalEnv;
+            this.base = entry(exp, target);
+            this.body = root(target.body());
+            this.cache = exp._inline_cache;
+            this.respecializations = respecializations;
+        }
+
+        Value execute(Env<Value> env) {
+            Value result = children[0].execute(env);
+            if (result != target || globalEnv != targetGlobalEnv) {
+                deoptimizations++;
+                if (respecializations < MAX_RESPECIALIZATIONS && result instanceof Value.FunVal operator
+                        && operator.formals().size() == children.length - 1) {
+                    return specialize(operator, respecializations + 1).execute(operator, env);
+                }
+                return replace(new Polymorphic(exp, children)).call(result, env);
+            }
+            cache.hit();
+            return execute(target, env);
+        }
+
+        private Value execute(Value.FunVal operator, Env<Value> env) {
+            return invoke(operator, base, body, operands(env));
+        }
+    }
+
+    private final class Polymorphic extends Call {
+        Polymorphic(CallExp exp, Node[] children) {
+            super(exp, children);
+        }
+
+        Value execute(Env<Value> env) {
+            return call(children[0].execute(env), env);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package typelang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static typelang.AST.*;
+import static typelang.Value.BoolVal;
+import static typelang.Value.NumVal;
+
+/**
+ * An Evaluator that dispatches on the node type with one exhaustive switch
+ * over the sealed Exp hierarchy instead of double dispatch through visitors.
+ * Its semantics, including the dynamic errors, are those of the Evaluator.
+ */
+public class SwitchEvaluator extends Evaluator {
+    private final Printer.Formatter<Value> ts = new Printer.Formatter<>();
+
+    public SwitchEvaluator() {
+    }
+
+    public SwitchEvaluator(Heap heap) {
+        super(heap);
+    }
+
+    @Override
+    Evaluator create(Heap heap) {
+        return new SwitchEvaluator(heap);
+    }
+
+    @Override
+    public Value visit(Program p, Env<Value> env) {
+        try {
+            for (DefineDecl d : p.decls()) {
+                eval(d, globalEnv);
+            }
+            return eval(p.e(), globalEnv);
+        } catch (ClassCastException e) {
+            return new Value.DynamicError(e.getMessage());
+        }
+    }
+
+    Value eval(Exp e, Env<Value> env) {
+        return switch (e) {
+            case NumExp n -> new NumVal(n.v());
+            case BoolExp b -> new BoolVal(b.b());
+            case UnitExp u -> new Value.UnitVal();
+            case VarExp v -> env.get(v.name());
+            case AddExp add -> {
+                double result = 0;
+                for (Exp exp : add.all()) {
+                    result += ((NumVal) eval(exp, env)).v();
+                }
+                yield new NumVal(result);
+            }
+            case MultExp mult -> {
+                double result = 1;
+                for (Exp exp : mult.all()) {
+                    result *= ((NumVal) eval(exp, env)).v();
+                }
+                yield new NumVal(result);
+            }
+            case SubExp sub -> {
+                List<Exp> operands = sub.all();
+                double result = ((NumVal) eval(operands.getFirst(), env)).v();
+                for (int i = 1; i < operands.size(); i++) {
+                    result -= ((NumVal) eval(operands.get(i), env)).v();
+                }
+                yield new NumVal(result);
+            }
+            case DivExp div -> {
+                List<Exp> operands = div.all();
+                double result = ((NumVal) eval(operands.getFirst(), env)).v();
+                for (int i = 1; i < operands.size(); i++) {
+                    result /= ((NumVal) eval(operands.get(i), env)).v();
+                }
+                yield new NumVal(result);
+            }
+            case LessExp less -> new BoolVal(num(less.first_exp(), env) < num(less.second_exp(), env));
+            case EqualExp equal -> new BoolVal(num(equal.first_exp(), env) == num(equal.second_exp(), env));
+            case GreaterExp greater -> new BoolVal(num(greater.first_exp(), env) > num(greater.second_exp(), env));
+            case LetExp let when regions && let.isRegion() -> {
+                int mark = heap.mark();
+                try {
+                    yield let(let, env);
+                } finally {
+                    heap.release(mark);
+                }
+            }
+            case LetExp let -> let(let, env);
+            case DefineDecl d -> {
+                Value value = eval(d.value_exp(), env);
+                if (profiler != null && value instanceof Value.FunVal f) {
+                    profiler.name(f, d.name());
+                }
+                globalEnv = globalEnv.extend(d.name(), value);
+                yield new Value.UnitVal();
+            }
+            case LambdaExp lambda -> new Value.FunVal(Env.ArrayEnv.capture(env, lambda.freeVariables()), lambda.formals(),
+                    lambda.body(), regions && lambda.isRegion());
+            case CallExp call -> call(call, env);
+            case IfExp ifExp -> {
+                if (!(eval(ifExp.conditional(), env) instanceof BoolVal condition)) {
+                    yield new Value.DynamicError("Condition not a boolean in expression " + ts.locate(ifExp));
+                }
+                yield eval(condition.v() ? ifExp.then_exp() : ifExp.else_exp(), env);
+            }
+            case CarExp car -> ((Value.PairVal) eval(car.arg(), env)).fst();
+            case CdrExp cdr -> ((Value.PairVal) eval(cdr.arg(), env)).snd();
+            case ConsExp cons -> {
+                Value first = eval(cons.fst(), env);
+                Value second = eval(cons.snd(), env);
+                yield new Value.PairVal(first, second);
+            }
+            case ListExp list -> {
+                List<Exp> elemExps = list.elems();
+                int length = elemExps.size();
+                if (length == 0) {
+                    yield new Value.Null();
+                }
+                Value[] elems = new Value[length];
+                for (int i = 0; i < length; i++) {
+                    elems[i] = eval(elemExps.get(i), env);
+                }
+                yield Value.ListVal.of(list.type(), elems);
+            }
+            case NullExp isNull -> new BoolVal(eval(isNull.arg(), env) instanceof Value.Null);
+            case RefExp ref -> heap.ref(eval(ref.value_exp(), env));
+            case DerefExp deref -> {
+                Value loc = eval(deref.loc_exp(), env);
+                yield loc instanceof Value.CellVal cell ? cell.value() : heap.deref((Value.RefVal) loc);
+            }
+            case AssignExp assign -> {
+                //Note the order of evaluation below.
+                Value rhs_val = eval(assign.rhs_exp(), env);
+                Value loc = eval(assign.lhs_exp(), env);
+                yield loc instanceof Value.CellVal cell ? cell.set(rhs_val) : heap.setref((Value.RefVal) loc, rhs_val);
+            }
+            case FreeExp free -> {
+                heap.free((Value.RefVal) eval(free.value_exp(), env));
+                yield new Value.UnitVal();
+            }
+        };
+    }
+
+    private Value let(LetExp let, Env<Value> env) {
+        List<String> names = let.names();
+        List<Exp> value_exps = let.value_exps();
+        List<Value> values = new ArrayList<>(value_exps.size());
+        for (int i = 0; i < value_exps.size(); i++) {
+            if (let.isLocalCell(i)) {
+                values.add(new Value.CellVal(eval(((RefExp) value_exps.get(i)).value_exp(), env)));
+            } else {
+                values.add(eval(value_exps.get(i), env));
+            }
+        }
+        Env<Value> new_env = env;
+        for (int i = 0; i < names.size(); i++) {
+            new_env = new_env.extend(names.get(i), values.get(i));
+        }
+        return eval(let.body(), new_env);
+    }
+
+    private double num(Exp e, Env<Value> env) {
+        return ((NumVal) eval(e, env)).v();
+    }
+
+    private Value call(CallExp e, Env<Value> env) {
+        if (!(eval(e.operator(), env) instanceof Value.FunVal operator)) {
+            return new Value.DynamicError("Operator not a function in call " + ts.locate(e));
+        }
+        List<Exp> operands = e.operands();
+        List<Value> actuals = new ArrayList<>(operands.size());
+        for (Exp exp : operands) {
+            actuals.add(eval(exp, env));
+        }
+
+        Env<Value> fun_env = entry(e, operator);
+        if (fun_env == null) {
+            return new Value.DynamicError("Argument mismatch in call " + ts.locate(e));
+        }
+        List<String> formals = operator.formals();
+        for (int index = 0; index < formals.size(); index++) {
+            fun_env = fun_env.extend(formals.get(index), actuals.get(index));
+        }
+
+        int mark = operator.region() ? heap.mark() : -1;
+        if (profiler != null) {
+            profiler.enter(operator);
+        }
+        try {
+            return eval(operator.body(), fun_env);
+        } finally {
+            if (profiler != null) {
+                profiler.exit();
+            }
+            if (mark >= 0) {
+                heap.release(mark);
+            }
+        }
+    }
+}
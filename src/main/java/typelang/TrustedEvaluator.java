@@ -0,0 +1,177 @@
+package typelang;
+
+import java.util.List;
+
+import static typelang.AST.*;
+import static typelang.Value.BoolVal;
+import static typelang.Value.NumVal;
+
+/**
+ * An Evaluator for programs the Checker has accepted. The checker has already
+ * proved that every operator gets operands of the types it expects, so this
+ * evaluator leaves out the dynamic checks and error values of the Evaluator.
+ * <p>
+ * Arithmetic and comparisons are computed on unboxed doubles and booleans,
+ * so a NumVal or BoolVal is only allocated for the value of a whole
+ * arithmetic or comparison subtree, and not at all for the condition of an if.
+ */
+public class TrustedEvaluator extends Evaluator {
+
+    public TrustedEvaluator() {
+    }
+
+    public TrustedEvaluator(Heap heap) {
+        super(heap);
+    }
+
+    @Override
+    Evaluator create(Heap heap) {
+        return new TrustedEvaluator(heap);
+    }
+
+    @Override
+    Value valueOf(Program p) {
+        if (!p.checked()) {
+            throw new IllegalArgumentException("Only a type checked program can be evaluated in trusted mode");
+        }
+        return super.valueOf(p);
+    }
+
+    /**
+     * The value of an expression of type num.
+     */
+    private double num(Exp e, Env<Value> env) {
+        if (e instanceof NumExp n) {
+            return n.v();
+        }
+        if (e instanceof AddExp add) {
+            double result = 0;
+            for (Exp exp : add.all()) {
+                result += num(exp, env);
+            }
+            return result;
+        }
+        if (e instanceof MultExp mult) {
+            double result = 1;
+            for (Exp exp : mult.all()) {
+                result *= num(exp, env);
+            }
+            return result;
+        }
+        if (e instanceof SubExp sub) {
+            List<Exp> operands = sub.all();
+            double result = num(operands.getFirst(), env);
+            for (int i = 1; i < operands.size(); i++) {
+                result -= num(operands.get(i), env);
+            }
+            return result;
+        }
+        if (e instanceof DivExp div) {
+            List<Exp> operands = div.all();
+            double result = num(operands.getFirst(), env);
+            for (int i = 1; i < operands.size(); i++) {
+                result /= num(operands.get(i), env);
+            }
+            return result;
+        }
+        return ((NumVal) e.accept(this, env)).v();
+    }
+
+    /**
+     * The value of an expression of type bool.
+     */
+    private boolean bool(Exp e, Env<Value> env) {
+        if (e instanceof LessExp less) {
+            return num(less.first_exp(), env) < num(less.second_exp(), env);
+        }
+        if (e instanceof EqualExp equal) {
+            return num(equal.first_exp(), env) == num(equal.second_exp(), env);
+        }
+        if (e instanceof GreaterExp greater) {
+            return num(greater.first_exp(), env) > num(greater.second_exp(), env);
+        }
+        if (e instanceof BoolExp b) {
+            return b.b();
+        }
+        return ((BoolVal) e.accept(this, env)).v();
+    }
+
+    @Override
+    public Value visit(AddExp e, Env<Value> env) {
+        return new NumVal(num(e, env));
+    }
+
+    @Override
+    public Value visit(SubExp e, Env<Value> env) {
+        return new NumVal(num(e, env));
+    }
+
+    @Override
+    public Value visit(MultExp e, Env<Value> env) {
+        return new NumVal(num(e, env));
+    }
+
+    @Override
+    public Value visit(DivExp e, Env<Value> env) {
+        return new NumVal(num(e, env));
+    }
+
+    @Override
+    public Value visit(LessExp e, Env<Value> env) {
+        return new BoolVal(bool(e, env));
+    }
+
+    @Override
+    public Value visit(EqualExp e, Env<Value> env) {
+        return new BoolVal(bool(e, env));
+    }
+
+    @Override
+    public Value visit(GreaterExp e, Env<Value> env) {
+        return new BoolVal(bool(e, env));
+    }
+
+    @Override
+    public Value visit(IfExp e, Env<Value> env) {
+        if (bool(e.conditional(), env)) {
+            return e.then_exp().accept(this, env);
+        } else {
+            return e.else_exp().accept(this, env);
+        }
+    }
+
+    @Override
+    public Value visit(Program p, Env<Value> env) {
+        for (DefineDecl d : p.decls()) {
+            d.accept(this, globalEnv);
+        }
+        return p.e().accept(this, globalEnv);
+    }
+
+    @Override
+    public Value visit(CallExp e, Env<Value> env) {
+        Value.FunVal operator = (Value.FunVal) e.operator().accept(this, env);
+        List<Exp> operands = e.operands();
+        List<String> formals = operator.formals();
+
+        Env<Value> fun_env = entry(e, operator);
+        for (int index = 0; index < formals.size(); index++) {
+            fun_env = fun_env.extend(formals.get(index), operands.get(index).accept(this, env));
+        }
+
+        int mark = operator.region() ? heap.mark() : -1;
+        if (profiler != null) {
+            profiler.enter(operator);
+        }
+        try {
+            return operator.body().accept(this, fun_env);
+        } finally {
+            if (profiler != null) {
+                profiler.exit();
+            }
+            if (mark >= 0) {
+                heap.release(mark);
+            }
+        }
+    }
+}
@@ -3,10 +3,46 @@ package typelang;
 import java.util.List;
 import java.util.stream.Collectors;
 
-public interface Type {
+/**
+ * Representation of types. Structured types implement equals and hashCode
+ * in terms of typeEqual, so they can be used as keys of hash-based maps.
+ * <p>
+ * A list type is its own tail (see ListT), so List&lt;T&gt; and the pair type
+ * (T List&lt;T&gt;) are equal. Hashing and canonical() respect that without
+ * ever following a list type's tail, which keeps them from looping.
+ */
+public sealed interface Type {
     boolean typeEqual(Type other);
 
-    class ErrorT implements Type {
+    /**
+     * The simplest type equal to this one: every pair type whose tail is a
+     * list of its head type is folded into that list type.
+     */
+    default Type canonical() {
+        return this;
+    }
+
+    /**
+     * The hash code of a canonical type, which does not canonicalize its
+     * parts again, so hashing a type takes time linear in its size.
+     */
+    private static int hash(Type canonical) {
+        return switch (canonical) {
+            case ListT l -> 31 * 5 + hash(l._fst);
+            case PairT p -> 31 * (31 * 3 + hash(p._fst)) + hash(p._snd);
+            case FuncT f -> {
+                int argTypes = 1;
+                for (Type argType : f._argTypes) {
+                    argTypes = 31 * argTypes + hash(argType);
+                }
+                yield 31 * (31 * 7 + argTypes) + hash(f._returnType);
+            }
+            case RefT r -> 31 * 11 + hash(r._nestType);
+            default -> canonical.hashCode();
+        };
+    }
+
+    final class ErrorT implements Type {
         String _message;
 
         public ErrorT(String message) {
@@ -23,7 +59,30 @@ public interface Type {
         }
     }
 
-    class UnitT implements Type {
+    /**
+     * The type of an expression that failed to check when the checker is
+     * collecting all errors. The checker treats it as compatible with every
+     * type, so that one mistake is reported once instead of again by every
+     * enclosing expression, but as a type it is only equal to itself.
+     */
+    final class UnknownT implements Type {
+        private static final UnknownT _instance = new UnknownT();
+
+        public static UnknownT getInstance() {
+            return _instance;
+        }
+
+        @Override
+        public String toString() {
+            return "?";
+        }
+
+        public boolean typeEqual(Type other) {
+            return other == this;
+        }
+    }
+
+    final class UnitT implements Type {
         private static final UnitT _instance = new UnitT();
 
         public static UnitT getInstance() {
@@ -35,12 +94,17 @@ public interface Type {
             return "unit";
         }
 
+        @Override
+        public int hashCode() {
+            return 17;
+        }
+
         public boolean typeEqual(Type other) {
             return other == this;
         }
     }
 
-    class BoolT implements Type {
+    final class BoolT implements Type {
         private static final BoolT _instance = new BoolT();
 
         public static BoolT getInstance() {
@@ -52,12 +116,17 @@ public interface Type {
             return "bool";
         }
 
+        @Override
+        public int hashCode() {
+            return 19;
+        }
+
         public boolean typeEqual(Type other) {
             return other == this;
         }
     }
 
-    class NumT implements Type {
+    final class NumT implements Type {
         private static final NumT _instance = new NumT();
 
         public static NumT getInstance() {
@@ -69,12 +138,17 @@ public interface Type {
             return "num";
         }
 
+        @Override
+        public int hashCode() {
+            return 23;
+        }
+
         public boolean typeEqual(Type other) {
             return other == this;
         }
     }
 
-    class PairT implements Type {
+    sealed class PairT implements Type {
         protected Type _fst;
         protected Type _snd;
 
@@ -102,9 +176,32 @@ public interface Type {
             }
             return false;
         }
+
+        @Override
+        public Type canonical() {
+            Type fst = _fst.canonical();
+            Type snd = _snd.canonical();
+            if (snd instanceof ListT lt && fst.typeEqual(lt._fst)) {
+                return lt;
+            }
+            if (fst == _fst && snd == _snd) {
+                return this;
+            }
+            return new PairT(fst, snd);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Type t && typeEqual(t);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(canonical());
+        }
     }
 
-    class ListT extends PairT implements Type {
+    final class ListT extends PairT implements Type {
         public ListT(Type type) {
             super(type, null);
 
@@ -124,9 +221,21 @@ public interface Type {
             }
             return false;
         }
+
+        @Override
+        public Type canonical() {
+            Type fst = _fst.canonical();
+            return fst == _fst ? this : new ListT(fst);
+        }
+
+        @Override
+        public int hashCode() {
+            // never hashes _snd, it is this list type again
+            return hash(canonical());
+        }
     }
 
-    class FuncT implements Type {
+    final class FuncT implements Type {
         protected List<Type> _argTypes;
         protected Type _returnType;
 
@@ -168,9 +277,31 @@ public interface Type {
             }
             return false;
         }
+
+        @Override
+        public Type canonical() {
+            List<Type> argTypes = _argTypes.stream().map(Type::canonical).toList();
+            Type returnType = _returnType.canonical();
+            for (int i = 0; i < argTypes.size(); i++) {
+                if (argTypes.get(i) != _argTypes.get(i)) {
+                    return new FuncT(argTypes, returnType);
+                }
+            }
+            return returnType == _returnType ? this : new FuncT(argTypes, returnType);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Type t && typeEqual(t);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(canonical());
+        }
     }
 
-    class RefT implements Type {
+    final class RefT implements Type {
         protected Type _nestType;
 
         public RefT(Type nestType) {
@@ -192,5 +323,21 @@ public interface Type {
             }
             return false;
         }
+
+        @Override
+        public Type canonical() {
+            Type nestType = _nestType.canonical();
+            return nestType == _nestType ? this : new RefT(nestType);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Type t && typeEqual(t);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(canonical());
+        }
     }
 }
@@ -2,9 +2,9 @@ package typelang;
 
 import java.util.List;
 
-public interface Value {
+public sealed interface Value {
 
-    class NumVal implements Value {
+    final class NumVal implements Value {
         private final double _val;
 
         public NumVal(double v) {
@@ -21,14 +21,14 @@ public interface Value {
         }
     }
 
-    class UnitVal implements Value {
+    final class UnitVal implements Value {
         @Override
         public String toString() {
             return "";
         }
     }
 
-    class DynamicError implements Value {
+    final class DynamicError implements Value {
         private final String message;
 
         public DynamicError(String message) {
@@ -41,15 +41,21 @@ public interface Value {
         }
     }
 
-    class FunVal implements Value { //New in the typelang
+    final class FunVal implements Value { //New in the typelang
         private final Env<Value> _env;
         private final List<String> _formals;
         private final AST.Exp _body;
+        private final boolean _region;
 
         public FunVal(Env<Value> env, List<String> formals, AST.Exp body) {
+            this(env, formals, body, false);
+        }
+
+        public FunVal(Env<Value> env, List<String> formals, AST.Exp body, boolean region) {
             _env = env;
             _formals = formals;
             _body = body;
+            _region = region;
         }
 
         public Env<Value> env() {
@@ -64,15 +70,20 @@ public interface Value {
             return _body;
         }
 
+        /**
+         * Whether a call's heap allocations can be released when it returns.
+         */
+        public boolean region() {
+            return _region;
+        }
+
         @Override
         public String toString() {
-            return "(lambda (%s) %s)".formatted(
-                    String.join(" ", _formals),
-                    _body.accept(new Printer.Formatter<>(), _env));
+            return Printer.toString(this);
         }
     }
 
-    class BoolVal implements Value {
+    final class BoolVal implements Value {
         private final boolean _val;
 
         public BoolVal(boolean v) {
@@ -89,7 +100,7 @@ public interface Value {
         }
     }
 
-    class PairVal implements Value {
+    sealed class PairVal implements Value {
         protected Value _fst;
         protected Value _snd;
 
@@ -108,43 +119,190 @@ public interface Value {
 
         @Override
         public java.lang.String toString() {
-            if (isList()) {
-                return listToString();
-            } else {
-                return "(" + _fst.toString() + " " + _snd.toString() + ")";
-            }
+            return Printer.toString(this);
+        }
+    }
+
+    /**
+     * A proper, non-empty list stored as a slice of a shared array. Its car
+     * and cdr are constant time: the cdr is a view of the same array starting
+     * one element later, and the cdr of a one element list is Null. Cons onto
+     * a ListVal still builds an ordinary PairVal whose tail is the ListVal.
+     */
+    sealed abstract class ListVal extends PairVal {
+        protected final int _offset;
+
+        protected ListVal(int offset) {
+            super(null, null);
+            _offset = offset;
         }
 
-        private boolean isList() {
-            if (_snd instanceof Value.Null) {
-                return true;
-            } else if (_snd instanceof PairVal p) {
-                return p.isList();
-            } else {
-                return false;
+        /**
+         * Stores the elements of a list of the given element type, unboxed
+         * when they are all numbers or all booleans.
+         */
+        public static ListVal of(Type elemType, Value[] elems) {
+            if (elemType instanceof Type.NumT) {
+                double[] nums = new double[elems.length];
+                for (int i = 0; i < elems.length; i++) {
+                    if (!(elems[i] instanceof NumVal n)) {
+                        return new ValueListVal(elems, 0);
+                    }
+                    nums[i] = n.v();
+                }
+                return new NumListVal(nums, 0);
+            } else if (elemType instanceof Type.BoolT) {
+                long[] bits = new long[(elems.length + 63) >>> 6];
+                for (int i = 0; i < elems.length; i++) {
+                    if (!(elems[i] instanceof BoolVal b)) {
+                        return new ValueListVal(elems, 0);
+                    }
+                    if (b.v()) {
+                        bits[i >>> 6] |= 1L << i;
+                    }
+                }
+                return new BoolListVal(bits, elems.length, 0);
             }
+            return new ValueListVal(elems, 0);
         }
 
-        private java.lang.String listToString() {
-            StringBuilder result = new StringBuilder("(");
-            result.append(_fst.toString());
-            Value next = _snd;
-            while (!(next instanceof Value.Null)) {
-                result.append(" ").append(((PairVal) next)._fst.toString());
-                next = ((PairVal) next)._snd;
+        public abstract int length();
+
+        public abstract Value get(int index);
+
+        /**
+         * The list starting at the given position of the backing array.
+         */
+        protected abstract ListVal slice(int offset);
+
+        @Override
+        public Value fst() {
+            return get(0);
+        }
+
+        @Override
+        public Value snd() {
+            if (length() == 1) {
+                return new Null();
             }
-            return result + ")";
+            return slice(_offset + 1);
+        }
+
+    }
+
+    final class ValueListVal extends ListVal {
+        private final Value[] _elems;
+
+        ValueListVal(Value[] elems, int offset) {
+            super(offset);
+            _elems = elems;
+        }
+
+        public int length() {
+            return _elems.length - _offset;
+        }
+
+        public Value get(int index) {
+            return _elems[_offset + index];
+        }
+
+        protected ListVal slice(int offset) {
+            return new ValueListVal(_elems, offset);
         }
     }
 
-    class Null implements Value {
+    /**
+     * A list of numbers kept unboxed, eight bytes per element.
+     */
+    final class NumListVal extends ListVal {
+        private final double[] _nums;
+
+        NumListVal(double[] nums, int offset) {
+            super(offset);
+            _nums = nums;
+        }
+
+        public int length() {
+            return _nums.length - _offset;
+        }
+
+        public double num(int index) {
+            return _nums[_offset + index];
+        }
+
+        public Value get(int index) {
+            return new NumVal(_nums[_offset + index]);
+        }
+
+        protected ListVal slice(int offset) {
+            return new NumListVal(_nums, offset);
+        }
+    }
+
+    /**
+     * A list of booleans packed one bit per element.
+     */
+    final class BoolListVal extends ListVal {
+        private final long[] _bits;
+        private final int _length;
+
+        BoolListVal(long[] bits, int length, int offset) {
+            super(offset);
+            _bits = bits;
+            _length = length;
+        }
+
+        public int length() {
+            return _length - _offset;
+        }
+
+        public boolean bool(int index) {
+            int i = _offset + index;
+            return (_bits[i >>> 6] & (1L << i)) != 0;
+        }
+
+        public Value get(int index) {
+            return new BoolVal(bool(index));
+        }
+
+        protected ListVal slice(int offset) {
+            return new BoolListVal(_bits, _length, offset);
+        }
+    }
+
+    final class Null implements Value {
         @Override
         public String toString() {
             return "()";
         }
     }
 
-    class RefVal implements Value {
+    /**
+     * A reference that escape analysis has shown never leaves the let that
+     * binds it, so it is kept in this cell instead of in the heap.
+     */
+    final class CellVal implements Value {
+        private Value _value;
+
+        public CellVal(Value value) {
+            _value = value;
+        }
+
+        public Value value() {
+            return _value;
+        }
+
+        public Value set(Value value) {
+            return _value = value;
+        }
+
+        @Override
+        public String toString() {
+            return "cell:" + _value;
+        }
+    }
+
+    final class RefVal implements Value {
         private final int _loc;
 
         public RefVal(int loc) {
@@ -0,0 +1,437 @@
+package typelang.vm;
+
+import typelang.FreeVariables;
+import typelang.Type;
+import typelang.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static typelang.AST.*;
+
+/**
+ * Compiles a program the Checker has accepted to a Module. Every variable is
+ * resolved to a register, a captured variable or a global when it is
+ * compiled, and temporaries are given registers above those of the
+ * variables in scope, which are handed back once the expression that needed
+ * them is done.
+ * <p>
+ * Like the TrustedEvaluator, the compiled code leaves out the checks the
+ * Checker has already made, so operators are not checked to be functions
+ * taking as many arguments as they are passed, nor conditions to be
+ * booleans. Calls in tail position reuse the frame of the caller.
+ */
+public final class Compiler {
+    private final List<Proto> protos = new ArrayList<>();
+    private final Map<String, Integer> globals = new LinkedHashMap<>();
+
+    private Compiler() {
+    }
+
+    public static Module compile(Program p) {
+        if (!p.checked()) {
+            throw new IllegalArgumentException("Only a type checked program can be compiled to bytecode");
+        }
+        Compiler compiler = new Compiler();
+        Function main = new Function(compiler, List.of(), new String[0], null);
+        compiler.protos.add(null);
+        compiler.protos.set(main.index, main.main(p));
+        return new Module(compiler.protos.toArray(new Proto[0]), compiler.globals.keySet().toArray(new String[0]));
+    }
+
+    /**
+     * Compiles a function the VM did not make, as one an Evaluator made or
+     * an Image restored, to the only Proto of a Module. Each of its free
+     * variables is looked up in what the closure captured and then among
+     * the globals, as the Evaluator looks it up.
+     */
+    static Module compile(Value.FunVal fun) {
+        Compiler compiler = new Compiler();
+        String[] names = FreeVariables.of(fun.formals(), fun.body()).toArray(new String[0]);
+        Scope scope = null;
+        for (int i = 0; i < names.length; i++) {
+            scope = new Scope(names[i], CAPTURED_GLOBAL, i, scope);
+        }
+        List<String> formals = fun.formals();
+        for (int i = 0; i < formals.size(); i++) {
+            scope = new Scope(formals.get(i), LOCAL, i, scope);
+        }
+        Function function = new Function(compiler, formals, names, fun.body());
+        compiler.protos.add(null);
+        compiler.protos.set(function.index, function.lambda(scope));
+        return new Module(compiler.protos.toArray(new Proto[0]), compiler.globals.keySet().toArray(new String[0]));
+    }
+
+    private int global(String name) {
+        return globals.computeIfAbsent(name, n -> globals.size());
+    }
+
+    private static final int LOCAL = 0;
+    private static final int CAPTURED = 1;
+    // a global the closure captured when it was made, if it was bound then
+    private static final int CAPTURED_GLOBAL = 2;
+
+    /**
+     * The variables in scope, innermost first.
+     */
+    private record Scope(String name, int kind, int index, Scope next) {
+        static Scope find(Scope scope, String name) {
+            for (; scope != null; scope = scope.next) {
+                if (scope.name.equals(name)) {
+                    return scope;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The state of compiling one function.
+     */
+    private static class Function {
+        private final Compiler compiler;
+        private final List<String> formals;
+        private final String[] captured;
+        private final Exp body;
+        private final int index;
+
+        private int[] code = new int[64];
+        private int size = 0;
+        private final List<Value> constants = new ArrayList<>();
+        private final Map<Object, Integer> constantIndex = new HashMap<>();
+        private int next;
+        private int registers;
+        private int sites = 0;
+        private final Map<Integer, ASTNode> sources = new HashMap<>();
+
+        Function(Compiler compiler, List<String> formals, String[] captured, Exp body) {
+            this.compiler = compiler;
+            this.formals = formals;
+            this.captured = captured;
+            this.body = body;
+            this.index = compiler.protos.size();
+            this.next = this.registers = formals.size();
+        }
+
+        Proto main(Program p) {
+            for (DefineDecl d : p.decls()) {
+                int mark = next;
+                int value = value(d.value_exp(), null);
+                emit(Opcode.DEFINE, compiler.global(d.name()), value);
+                next = mark;
+            }
+            tail(p.e(), null);
+            return proto();
+        }
+
+        Proto lambda(Scope scope) {
+            tail(body, scope);
+            return proto();
+        }
+
+        private Proto proto() {
+            return new Proto(index, formals, captured, registers, sites,
+                    Arrays.copyOf(code, size), constants.toArray(new Value[0]), body, sources);
+        }
+
+        private void emit(int... words) {
+            if (size + words.length > code.length) {
+                code = Arrays.copyOf(code, Math.max(code.length * 2, size + words.length));
+            }
+            System.arraycopy(words, 0, code, size, words.length);
+            size += words.length;
+        }
+
+        private void emit(int op, int[] fixed, int[] regs) {
+            int[] words = new int[1 + fixed.length + 1 + regs.length];
+            words[0] = op;
+            System.arraycopy(fixed, 0, words, 1, fixed.length);
+            words[1 + fixed.length] = regs.length;
+            System.arraycopy(regs, 0, words, 2 + fixed.length, regs.length);
+            emit(words);
+        }
+
+        private void patch(int at) {
+            code[at] = size;
+        }
+
+        private int alloc() {
+            int reg = next++;
+            if (next > registers) {
+                registers = next;
+            }
+            return reg;
+        }
+
+        private int constant(Object key, Value value) {
+            return constantIndex.computeIfAbsent(key, k -> {
+                constants.add(value);
+                return constants.size() - 1;
+            });
+        }
+
+        /**
+         * The register holding the value of e, which is a new one unless e
+         * names a local variable.
+         */
+        private int value(Exp e, Scope scope) {
+            if (e instanceof VarExp v) {
+                Scope var = Scope.find(scope, v.name());
+                if (var != null && var.kind == LOCAL) {
+                    return var.index;
+                }
+            }
+            int reg = alloc();
+            into(e, reg, scope);
+            return reg;
+        }
+
+        /**
+         * The operand of an arithmetic or comparison instruction with the
+         * value of e, which is the complement of its index in the constant
+         * pool if e is a number.
+         */
+        private int operand(Exp e, Scope scope) {
+            if (e instanceof NumExp n) {
+                return ~constant(n.v(), new Value.NumVal(n.v()));
+            }
+            return value(e, scope);
+        }
+
+        private int[] operands(List<Exp> exps, Scope scope) {
+            int[] operands = new int[exps.size()];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = operand(exps.get(i), scope);
+            }
+            return operands;
+        }
+
+        private int[] values(List<Exp> exps, Scope scope) {
+            int[] regs = new int[exps.size()];
+            for (int i = 0; i < regs.length; i++) {
+                regs[i] = value(exps.get(i), scope);
+            }
+            return regs;
+        }
+
+        /**
+         * Compiles e in tail position, returning its value.
+         */
+        private void tail(Exp e, Scope scope) {
+            int mark = next;
+            switch (e) {
+                case IfExp i -> {
+                    int otherwise = branch(i, scope);
+                    tail(i.then_exp(), scope);
+                    patch(otherwise);
+                    tail(i.else_exp(), scope);
+                }
+                case LetExp let -> tail(let.body(), bind(let, scope));
+                case CallExp call -> call(call, -1, scope);
+                default -> emit(Opcode.RETURN, value(e, scope));
+            }
+            next = mark;
+        }
+
+        /**
+         * Compiles e to put its value in dst.
+         */
+        private void into(Exp e, int dst, Scope scope) {
+            int mark = next;
+            switch (e) {
+                case NumExp n -> emit(Opcode.CONST, dst, constant(n.v(), new Value.NumVal(n.v())));
+                case BoolExp b -> emit(Opcode.CONST, dst, constant(b.b(), new Value.BoolVal(b.b())));
+                case UnitExp u -> emit(Opcode.CONST, dst, constant(Value.UnitVal.class, new Value.UnitVal()));
+                case VarExp v -> load(v.name(), dst, scope, true);
+                case AddExp add -> emit(Opcode.ADD, new int[]{dst}, operands(add.all(), scope));
+                case SubExp sub -> emit(Opcode.SUB, new int[]{dst}, operands(sub.all(), scope));
+                case MultExp mult -> emit(Opcode.MUL, new int[]{dst}, operands(mult.all(), scope));
+                case DivExp div -> emit(Opcode.DIV, new int[]{dst}, operands(div.all(), scope));
+                case LessExp less -> compare(Opcode.LESS, dst, less.first_exp(), less.second_exp(), scope);
+                case EqualExp equal -> compare(Opcode.EQUAL, dst, equal.first_exp(), equal.second_exp(), scope);
+                case GreaterExp greater -> compare(Opcode.GREATER, dst, greater.first_exp(), greater.second_exp(), scope);
+                case IfExp i -> {
+                    int otherwise = branch(i, scope);
+                    into(i.then_exp(), dst, scope);
+                    emit(Opcode.JUMP, 0);
+                    int end = size - 1;
+                    patch(otherwise);
+                    into(i.else_exp(), dst, scope);
+                    patch(end);
+                }
+                case LetExp let -> into(let.body(), dst, bind(let, scope));
+                case LambdaExp lambda -> closure(lambda, dst, scope);
+                case CallExp call -> call(call, dst, scope);
+                case CarExp car -> emit(Opcode.CAR, dst, value(car.arg(), scope));
+                case CdrExp cdr -> emit(Opcode.CDR, dst, value(cdr.arg(), scope));
+                case ConsExp cons -> binary(Opcode.CONS, dst, cons.fst(), cons.snd(), scope);
+                case ListExp list -> {
+                    if (list.elems().isEmpty()) {
+                        emit(Opcode.CONST, dst, constant(Value.Null.class, new Value.Null()));
+                    } else {
+                        int kind = list.type() instanceof Type.NumT ? Opcode.LIST_NUMS
+                                : list.type() instanceof Type.BoolT ? Opcode.LIST_BOOLS
+                                : Opcode.LIST_VALUES;
+                        emit(Opcode.LIST, new int[]{dst, kind}, values(list.elems(), scope));
+                    }
+                }
+                case NullExp n -> emit(Opcode.NULL, dst, value(n.arg(), scope));
+                case RefExp ref -> emit(Opcode.REF, dst, value(ref.value_exp(), scope));
+                case DerefExp deref -> emit(Opcode.DEREF, dst, value(deref.loc_exp(), scope));
+                case AssignExp assign -> {
+                    // the right hand side is evaluated first
+                    int rhs = value(assign.rhs_exp(), scope);
+                    int lhs = value(assign.lhs_exp(), scope);
+                    emit(Opcode.ASSIGN, dst, lhs, rhs);
+                }
+                case FreeExp free -> emit(Opcode.FREE, dst, value(free.value_exp(), scope));
+                case DefineDecl d -> throw new IllegalArgumentException("A definition can only be at the top level");
+            }
+            next = mark;
+        }
+
+        private void binary(int op, int dst, Exp first, Exp second, Scope scope) {
+            int a = value(first, scope);
+            int b = value(second, scope);
+            emit(op, dst, a, b);
+        }
+
+        /**
+         * Compiles the test of an if expression, returning the position of
+         * the target to patch with where to go when it is false.
+         */
+        private int branch(IfExp i, Scope scope) {
+            int mark = next;
+            switch (i.conditional()) {
+                case LessExp less -> compare(Opcode.JUMP_IF_NOT_LESS, -1, less.first_exp(), less.second_exp(), scope);
+                case EqualExp equal -> compare(Opcode.JUMP_IF_NOT_EQUAL, -1, equal.first_exp(), equal.second_exp(), scope);
+                case GreaterExp greater -> compare(Opcode.JUMP_IF_NOT_GREATER, -1, greater.first_exp(), greater.second_exp(), scope);
+                default -> {
+                    int test = value(i.conditional(), scope);
+                    sources.put(size, i);
+                    emit(Opcode.JUMP_IF_FALSE, test, 0);
+                }
+            }
+            next = mark;
+            return size - 1;
+        }
+
+        /**
+         * Compiles a comparison putting its result in dst, or a jump to be
+         * patched if dst is negative.
+         */
+        private void compare(int op, int dst, Exp first, Exp second, Scope scope) {
+            int a = operand(first, scope);
+            int b = operand(second, scope);
+            if (dst < 0) {
+                emit(op, a, b, 0);
+            } else {
+                emit(op, dst, a, b);
+            }
+        }
+
+        /**
+         * Compiles the values of the variables of let into registers of
+         * their own, returning the scope of its body.
+         */
+        private Scope bind(LetExp let, Scope scope) {
+            List<String> names = let.names();
+            Scope body = scope;
+            for (int i = 0; i < names.size(); i++) {
+                int reg = alloc();
+                if (let.isLocalCell(i)) {
+                    into(((RefExp) let.value_exps().get(i)).value_exp(), reg, scope);
+                    emit(Opcode.CELL, reg, reg);
+                } else {
+                    into(let.value_exps().get(i), reg, scope);
+                }
+                body = new Scope(names.get(i), LOCAL, reg, body);
+            }
+            return body;
+        }
+
+        private void load(String name, int dst, Scope scope, boolean strict) {
+            Scope var = Scope.find(scope, name);
+            if (var == null) {
+                emit(Opcode.GLOBAL, dst, -1, compiler.global(name), strict ? 1 : 0);
+            } else if (var.kind == LOCAL) {
+                if (var.index != dst) {
+                    emit(Opcode.MOVE, dst, var.index);
+                }
+            } else if (var.kind == CAPTURED) {
+                emit(Opcode.CAPTURED, dst, var.index);
+            } else {
+                emit(Opcode.GLOBAL, dst, var.index, compiler.global(name), strict ? 1 : 0);
+            }
+        }
+
+        /**
+         * Compiles lambda to a Proto of its own and the code making a
+         * closure of it. A closure captures the variables it uses that are
+         * bound when it is made, globals included, as the Evaluator's do.
+         */
+        private void closure(LambdaExp lambda, int dst, Scope scope) {
+            List<String> free = lambda.freeVariables();
+            String[] names = free.toArray(new String[0]);
+            int[] regs = new int[names.length];
+            Scope inner = null;
+            for (int i = 0; i < names.length; i++) {
+                Scope var = Scope.find(scope, names[i]);
+                if (var != null && var.kind == LOCAL) {
+                    regs[i] = var.index;
+                } else {
+                    regs[i] = alloc();
+                    load(names[i], regs[i], scope, false);
+                }
+                boolean global = var == null || var.kind == CAPTURED_GLOBAL;
+                inner = new Scope(names[i], global ? CAPTURED_GLOBAL : CAPTURED, i, inner);
+            }
+            List<String> formals = lambda.formals();
+            for (int i = 0; i < formals.size(); i++) {
+                inner = new Scope(formals.get(i), LOCAL, i, inner);
+            }
+            Function function = new Function(compiler, formals, names, lambda.body());
+            compiler.protos.add(null);
+            compiler.protos.set(function.index, function.lambda(inner));
+            emit(Opcode.CLOSURE, new int[]{dst, function.index}, regs);
+        }
+
+        /**
+         * Compiles a call putting its result in dst, or a tail call if dst
+         * is negative.
+         */
+        private void call(CallExp call, int dst, Scope scope) {
+            if (call.operator() instanceof VarExp v) {
+                Scope var = Scope.find(scope, v.name());
+                if (var == null || var.kind == CAPTURED_GLOBAL) {
+                    // the Checker has made sure the operator is bound, so it
+                    // can be looked up after the operands are evaluated
+                    int captured = var == null ? -1 : var.index;
+                    int global = compiler.global(v.name());
+                    int[] operands = values(call.operands(), scope);
+                    int site = sites++;
+                    sources.put(size, call);
+                    if (dst < 0) {
+                        emit(Opcode.TAIL_CALL_GLOBAL, new int[]{captured, global, site}, operands);
+                    } else {
+                        emit(Opcode.CALL_GLOBAL, new int[]{dst, captured, global, site}, operands);
+                    }
+                    return;
+                }
+            }
+            int operator = value(call.operator(), scope);
+            int[] operands = values(call.operands(), scope);
+            int site = sites++;
+            sources.put(size, call);
+            if (dst < 0) {
+                emit(Opcode.TAIL_CALL, new int[]{operator, site}, operands);
+            } else {
+                emit(Opcode.CALL, new int[]{dst, operator, site}, operands);
+            }
+        }
+    }
+}
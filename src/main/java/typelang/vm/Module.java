@@ -0,0 +1,294 @@
+package typelang.vm;
+
+import typelang.AST.Exp;
+import typelang.AST.Program;
+import typelang.Serializer;
+import typelang.Value;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled program: the Protos of its top level, which is the first, and of
+ * its functions, and the names of the globals it refers to. A module compiled
+ * from a function value has only that function's Proto, and is not written. A module can be
+ * written out and read back, so that a program can be run again without
+ * parsing, checking or compiling it.
+ * <p>
+ * The bodies of the functions are kept as they are needed to make closures
+ * that other evaluators can call and print; they are written by a
+ * Serializer. Reading a module verifies its code, so the VM can run it
+ * without checking operands.
+ */
+public final class Module {
+    static final int MAGIC = 0x544C4243; // "TLBC"
+    static final int VERSION = 1;
+
+    private static final int NUM = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int UNIT = 3;
+    private static final int NULL = 4;
+
+    final Proto[] protos;
+    final String[] globals;
+
+    Module(Proto[] protos, String[] globals) {
+        this.protos = protos;
+        this.globals = globals;
+        for (Proto proto : protos) {
+            proto.module = this;
+        }
+    }
+
+    Proto main() {
+        return protos[0];
+    }
+
+    public void write(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        strings(out, List.of(globals));
+        out.writeInt(protos.length);
+        for (Proto proto : protos) {
+            strings(out, proto.formals);
+            strings(out, List.of(proto.captured));
+            out.writeInt(proto.registers);
+            out.writeInt(proto.siteTargets.length);
+            out.writeInt(proto.constants.length);
+            for (Value constant : proto.constants) {
+                switch (constant) {
+                    case Value.NumVal n -> {
+                        out.writeByte(NUM);
+                        out.writeDouble(n.v());
+                    }
+                    case Value.BoolVal b -> out.writeByte(b.v() ? TRUE : FALSE);
+                    case Value.UnitVal u -> out.writeByte(UNIT);
+                    case Value.Null n -> out.writeByte(NULL);
+                    default -> throw new IOException("Constant cannot be written: " + constant);
+                }
+            }
+            out.writeInt(proto.code.length);
+            for (int word : proto.code) {
+                out.writeInt(word);
+            }
+            if (proto.body == null) {
+                out.writeInt(-1);
+            } else {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                Serializer.write(new Program(List.of(), proto.body), body);
+                out.writeInt(body.size());
+                body.writeTo(out);
+            }
+        }
+        out.flush();
+    }
+
+    public static Module read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a TypeLang module");
+        }
+        String[] globals = strings(in).toArray(new String[0]);
+        Proto[] protos = new Proto[count(in)];
+        for (int index = 0; index < protos.length; index++) {
+            List<String> formals = strings(in);
+            String[] captured = strings(in).toArray(new String[0]);
+            int registers = count(in);
+            int sites = count(in);
+            Value[] constants = new Value[count(in)];
+            for (int i = 0; i < constants.length; i++) {
+                int tag = in.readUnsignedByte();
+                constants[i] = switch (tag) {
+                    case NUM -> new Value.NumVal(in.readDouble());
+                    case TRUE -> new Value.BoolVal(true);
+                    case FALSE -> new Value.BoolVal(false);
+                    case UNIT -> new Value.UnitVal();
+                    case NULL -> new Value.Null();
+                    default -> throw new IOException("Unknown constant tag " + tag);
+                };
+            }
+            int[] code = new int[count(in)];
+            for (int i = 0; i < code.length; i++) {
+                code[i] = in.readInt();
+            }
+            int length = in.readInt();
+            Exp body = null;
+            if (length >= 0) {
+                byte[] bytes = in.readNBytes(length);
+                if (bytes.length != length) {
+                    throw new IOException("Truncated module");
+                }
+                body = Serializer.read(new ByteArrayInputStream(bytes)).e();
+            }
+            if ((index == 0) != (body == null) || formals.size() > registers) {
+                throw new IOException("Malformed function " + index);
+            }
+            protos[index] = new Proto(index, formals, captured, registers, sites, code, constants, body, Map.of());
+        }
+        if (protos.length == 0) {
+            throw new IOException("Module has no code");
+        }
+        Module module = new Module(protos, globals);
+        for (Proto proto : protos) {
+            module.verify(proto);
+        }
+        return module;
+    }
+
+    /**
+     * Checks that every instruction of proto is whole, that its operands are
+     * in range, that jumps land on instructions and that the code cannot run
+     * off its end.
+     */
+    private void verify(Proto proto) throws IOException {
+        int[] code = proto.code;
+        boolean[] starts = new boolean[code.length + 1];
+        List<Integer> targets = new ArrayList<>();
+        int pc = 0;
+        int last = -1;
+        while (pc < code.length) {
+            starts[pc] = true;
+            last = code[pc];
+            if (!Opcode.isValid(last)) {
+                throw malformed(proto, pc, "unknown opcode " + last);
+            }
+            String format = Opcode.format(last);
+            if (pc + format.length() >= code.length) {
+                throw malformed(proto, pc, "truncated instruction");
+            }
+            for (int i = 0; i < format.length(); i++) {
+                int operand = code[pc + 1 + i];
+                boolean valid = switch (format.charAt(i)) {
+                    case 'R' -> operand >= 0 && operand < proto.registers;
+                    case 'V' -> operand < 0 ? ~operand < proto.constants.length : operand < proto.registers;
+                    case 'K' -> operand >= 0 && operand < proto.constants.length;
+                    case 'G' -> operand >= 0 && operand < globals.length;
+                    case 'C' -> operand >= -1 && operand < proto.captured.length;
+                    case 'P' -> operand > 0 && operand < protos.length;
+                    case 'S' -> operand >= 0 && operand < proto.siteTargets.length;
+                    case 'T' -> {
+                        targets.add(operand);
+                        yield true;
+                    }
+                    case 'N', 'M' -> {
+                        int end = pc + 2 + i + operand;
+                        if (operand < 0 || end > code.length) {
+                            yield false;
+                        }
+                        for (int r = pc + 2 + i; r < end; r++) {
+                            boolean constant = code[r] < 0 && format.charAt(i) == 'M';
+                            if (constant ? ~code[r] >= proto.constants.length : code[r] < 0 || code[r] >= proto.registers) {
+                                yield false;
+                            }
+                        }
+                        yield true;
+                    }
+                    default -> true;
+                };
+                if (!valid) {
+                    throw malformed(proto, pc, "bad operand " + operand);
+                }
+            }
+            if (last == Opcode.CLOSURE && code[pc + 3] != protos[code[pc + 2]].captured.length) {
+                throw malformed(proto, pc, "wrong number of captured variables");
+            }
+            if (last == Opcode.CAPTURED && code[pc + 2] < 0) {
+                throw malformed(proto, pc, "bad operand " + code[pc + 2]);
+            }
+            pc += Opcode.length(code, pc);
+        }
+        for (int target : targets) {
+            if (target < 0 || target >= code.length || !starts[target]) {
+                throw malformed(proto, target, "jump into the middle of an instruction");
+            }
+        }
+        if (last != Opcode.RETURN && last != Opcode.TAIL_CALL && last != Opcode.TAIL_CALL_GLOBAL) {
+            throw malformed(proto, code.length, "code runs off its end");
+        }
+    }
+
+    private static IOException malformed(Proto proto, int pc, String reason) {
+        return new IOException("Malformed code in " + proto.name() + " at " + pc + ": " + reason);
+    }
+
+    private static void strings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static List<String> strings(DataInputStream in) throws IOException {
+        int size = count(in);
+        List<String> strings = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static int count(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Negative count in module");
+        }
+        return count;
+    }
+
+    /**
+     * A listing of the code of every function in the module.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Proto proto : protos) {
+            sb.append(proto.name()).append(": ").append(proto.registers).append(" registers");
+            if (proto.captured.length > 0) {
+                sb.append(", captures ").append(String.join(" ", proto.captured));
+            }
+            sb.append('\n');
+            int[] code = proto.code;
+            for (int pc = 0; pc < code.length; pc += Opcode.length(code, pc)) {
+                String format = Opcode.format(code[pc]);
+                sb.append(String.format("%6d  %-20s", pc, Opcode.name(code[pc])));
+                for (int i = 0; i < format.length(); i++) {
+                    int operand = code[pc + 1 + i];
+                    sb.append(' ').append(switch (format.charAt(i)) {
+                        case 'R' -> "r" + operand;
+                        case 'V' -> operand(proto, operand);
+                        case 'K' -> "#" + proto.constants[operand];
+                        case 'G' -> globals[operand];
+                        case 'P' -> protos[operand].name();
+                        case 'C' -> operand < 0 ? "-" : proto.captured[operand];
+                        case 'N', 'M' -> {
+                            StringBuilder regs = new StringBuilder("(");
+                            for (int r = 0; r < operand; r++) {
+                                regs.append(r == 0 ? "" : " ").append(operand(proto, code[pc + 2 + i + r]));
+                            }
+                            yield regs.append(')').toString();
+                        }
+                        default -> Integer.toString(operand);
+                    });
+                }
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String operand(Proto proto, int operand) {
+        return operand < 0 ? "#" + proto.constants[~operand] : "r" + operand;
+    }
+}
@@ -0,0 +1,110 @@
+package typelang.vm;
+
+/**
+ * The instructions of the VM. An instruction is an opcode followed by its
+ * operands in the code array of a Proto. The format of an opcode has one
+ * letter per operand:
+ * <ul>
+ * <li>R a register of the current frame</li>
+ * <li>V a register, or the complement of an index into the constant pool</li>
+ * <li>K an index into the constant pool of the Proto</li>
+ * <li>G an index into the global names of the Module</li>
+ * <li>C an index into the variables the running closure captured, or -1</li>
+ * <li>P an index into the Protos of the Module</li>
+ * <li>S a call site of the Proto</li>
+ * <li>T the position in the code array to jump to</li>
+ * <li>X a plain number</li>
+ * <li>N a count, followed by that many registers</li>
+ * <li>M a count, followed by that many V operands</li>
+ * </ul>
+ */
+final class Opcode {
+    static final int MOVE = 0;
+    static final int CONST = 1;
+    // dst, captured, global, strict: the variable the closure captured, or
+    // else its current global binding, which must exist if strict is 1
+    static final int GLOBAL = 2;
+    static final int CAPTURED = 3;
+    static final int DEFINE = 4;
+    static final int ADD = 5;
+    static final int SUB = 6;
+    static final int MUL = 7;
+    static final int DIV = 8;
+    static final int LESS = 9;
+    static final int EQUAL = 10;
+    static final int GREATER = 11;
+    static final int JUMP = 12;
+    static final int JUMP_IF_FALSE = 13;
+    static final int JUMP_IF_NOT_LESS = 14;
+    static final int JUMP_IF_NOT_EQUAL = 15;
+    static final int JUMP_IF_NOT_GREATER = 16;
+    static final int CLOSURE = 17;
+    static final int CALL = 18;
+    static final int TAIL_CALL = 19;
+    static final int RETURN = 20;
+    static final int CAR = 21;
+    static final int CDR = 22;
+    static final int CONS = 23;
+    // dst, element kind (see LIST_*), elements
+    static final int LIST = 24;
+    static final int NULL = 25;
+    static final int REF = 26;
+    static final int CELL = 27;
+    static final int DEREF = 28;
+    static final int ASSIGN = 29;
+    static final int FREE = 30;
+    // a call or tail call of a global, looked up as by GLOBAL
+    static final int CALL_GLOBAL = 31;
+    static final int TAIL_CALL_GLOBAL = 32;
+
+    static final int LIST_VALUES = 0;
+    static final int LIST_NUMS = 1;
+    static final int LIST_BOOLS = 2;
+
+    private static final String[] NAMES = {
+            "move", "const", "global", "captured", "define",
+            "add", "sub", "mul", "div", "less", "equal", "greater",
+            "jump", "jump_if_false", "jump_if_not_less", "jump_if_not_equal", "jump_if_not_greater",
+            "closure", "call", "tail_call", "return",
+            "car", "cdr", "cons", "list", "null?",
+            "ref", "cell", "deref", "assign", "free",
+            "call_global", "tail_call_global"
+    };
+
+    private static final String[] FORMATS = {
+            "RR", "RK", "RCGX", "RC", "GR",
+            "RM", "RM", "RM", "RM", "RVV", "RVV", "RVV",
+            "T", "RT", "VVT", "VVT", "VVT",
+            "RPN", "RRSN", "RSN", "R",
+            "RR", "RR", "RRR", "RXN", "RR",
+            "RR", "RR", "RR", "RRR", "RR",
+            "RCGSN", "CGSN"
+    };
+
+    private Opcode() {
+    }
+
+    static boolean isValid(int op) {
+        return op >= 0 && op < FORMATS.length;
+    }
+
+    static String name(int op) {
+        return NAMES[op];
+    }
+
+    static String format(int op) {
+        return FORMATS[op];
+    }
+
+    /**
+     * The number of ints the instruction at pc takes up, its opcode included.
+     */
+    static int length(int[] code, int pc) {
+        String format = FORMATS[code[pc]];
+        int length = 1 + format.length();
+        if (format.endsWith("N") || format.endsWith("M")) {
+            length += code[pc + format.length()];
+        }
+        return length;
+    }
+}
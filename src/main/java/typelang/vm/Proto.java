@@ -0,0 +1,49 @@
+package typelang.vm;
+
+import typelang.AST.ASTNode;
+import typelang.AST.Exp;
+import typelang.Value;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled form of a function, or of the top level of a program. Its
+ * formals are in the first registers of its frame when it is called, and the
+ * variables a closure of it captures are in the order of captured.
+ */
+final class Proto {
+    final int index;
+    final List<String> formals;
+    final String[] captured;
+    final int registers;
+    final int[] code;
+    final Value[] constants;
+    // the body closures of this Proto are made with, null for the top level
+    final Exp body;
+    Module module;
+    // the calls and ifs the instructions at these positions were compiled
+    // from, to report a failed dynamic check as the evaluators do; empty for
+    // a Proto read from a module file
+    final Map<Integer, ASTNode> sources;
+
+    // the Proto of the function last called from each call site
+    final Proto[] siteTargets;
+
+    Proto(int index, List<String> formals, String[] captured, int registers, int sites,
+          int[] code, Value[] constants, Exp body, Map<Integer, ASTNode> sources) {
+        this.index = index;
+        this.formals = formals;
+        this.captured = captured;
+        this.registers = registers;
+        this.code = code;
+        this.constants = constants;
+        this.body = body;
+        this.sources = sources;
+        this.siteTargets = new Proto[sites];
+    }
+
+    String name() {
+        return body == null ? "main" : "lambda" + index + formals;
+    }
+}
@@ -0,0 +1,467 @@
+package typelang.vm;
+
+import typelang.AST;
+import typelang.AST.Exp;
+import typelang.Env;
+import typelang.Evaluator;
+import typelang.Heap;
+import typelang.Printer;
+import typelang.Type;
+import typelang.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static typelang.Value.BoolVal;
+import static typelang.Value.NumVal;
+
+/**
+ * Runs Modules in a dispatch loop over their code. The registers of all
+ * frames are kept in one array, each frame's above its caller's, and the
+ * frames themselves in arrays of their own, so a call does not grow the Java
+ * stack and a program can recurse much deeper than in the Evaluator.
+ * <p>
+ * The globals are those of an Evaluator's global environment, which the VM
+ * keeps a copy of in slots and extends with what the modules it runs define,
+ * so a session can be saved to an image and booted from one as with the
+ * Evaluator. Closures are FunVals with an ArrayEnv of the variables they
+ * captured, so they can be printed, stored in the heap and called by the
+ * evaluators like any other. A function the VM did not make in the current
+ * run, like one restored from an image or defined by an earlier program, is
+ * compiled the first time the run calls it.
+ */
+public final class VM {
+    static final int MAX_FRAMES = 1 << 20;
+
+    private final Evaluator session;
+    private final Heap heap;
+    // the global environment the slots hold the values of
+    private Env<Value> globalEnv;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    // Object rather than Value arrays, as storing into those needs a type
+    // check the JIT keeps deoptimizing on
+    private Object[] globals = new Object[16];
+    // the slots the globals of each module linked in the current run are in,
+    // and the Protos of their functions; both are dropped when the run ends
+    private final Map<Module, int[]> links = new IdentityHashMap<>();
+    private final Map<Exp, Proto> bodies = new IdentityHashMap<>();
+    private final Printer.Formatter<Value> ts = new Printer.Formatter<>();
+
+    private Object[] registers = new Object[256];
+    private Proto[] frameProtos = new Proto[64];
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Env.ArrayEnv<Value>[] frameCaptured = new Env.ArrayEnv[64];
+    private int[] framePcs = new int[64];
+    private int[] frameBases = new int[64];
+    private int[] frameResults = new int[64];
+
+    public VM() {
+        this(new Heap.Heap16Bit());
+    }
+
+    public VM(Heap heap) {
+        this(new Evaluator(heap));
+    }
+
+    /**
+     * A VM with the heap and global environment of the given evaluator.
+     */
+    public VM(Evaluator session) {
+        this.session = session;
+        this.heap = session.heap();
+        this.globalEnv = session.globalEnv();
+    }
+
+    public Value run(Module module) {
+        if (session.globalEnv() != globalEnv) {
+            // replaced from outside, as by booting from an image
+            globalEnv = session.globalEnv();
+            for (int slot = 0; slot < names.size(); slot++) {
+                globals[slot] = globalEnv.lookup(names.get(slot));
+            }
+        }
+        link(module);
+        try {
+            return execute(module.main());
+        } finally {
+            Arrays.fill(registers, null);
+            Arrays.fill(frameProtos, null);
+            Arrays.fill(frameCaptured, null);
+            unlink();
+        }
+    }
+
+    /**
+     * Forgets the modules linked during a run, so a session does not keep
+     * every program it ran. A function defined by one of them is compiled
+     * again from its FunVal the first time a later run calls it.
+     */
+    private void unlink() {
+        for (Module module : links.keySet()) {
+            for (Proto proto : module.protos) {
+                Arrays.fill(proto.siteTargets, null);
+            }
+        }
+        links.clear();
+        bodies.clear();
+    }
+
+    private void link(Module module) {
+        if (links.containsKey(module)) {
+            return;
+        }
+        int[] link = new int[module.globals.length];
+        for (int i = 0; i < link.length; i++) {
+            link[i] = slots.computeIfAbsent(module.globals[i], name -> {
+                names.add(name);
+                return names.size() - 1;
+            });
+        }
+        if (names.size() > globals.length) {
+            globals = Arrays.copyOf(globals, Math.max(names.size(), globals.length * 2));
+        }
+        for (int slot : link) {
+            if (globals[slot] == null) {
+                globals[slot] = globalEnv.lookup(names.get(slot));
+            }
+        }
+        links.put(module, link);
+        for (Proto proto : module.protos) {
+            if (proto.body != null) {
+                bodies.put(proto.body, proto);
+            }
+        }
+    }
+
+    private Object[] ensure(int size) {
+        if (size > registers.length) {
+            registers = Arrays.copyOf(registers, Math.max(size, registers.length * 2));
+        }
+        return registers;
+    }
+
+    /**
+     * The number in a V operand.
+     */
+    private static double num(Object[] regs, int base, Value[] constants, int operand) {
+        return ((NumVal) (operand >= 0 ? regs[base + operand] : constants[~operand])).v();
+    }
+
+    /**
+     * The variable the closure captured, or else the global it refers to.
+     */
+    private Value global(Env.ArrayEnv<Value> captured, int index, int slot, boolean strict) {
+        Value value = index < 0 ? null : captured.value(index);
+        if (value == null) {
+            value = (Value) globals[slot];
+            if (value == null && strict) {
+                throw new Env.LookupException("No binding found for name: " + names.get(slot));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The variables fun captured, at the positions the code of target refers
+     * to them by. Those of a closure the VM did not make are copied there.
+     */
+    private static Env.ArrayEnv<Value> captured(Value.FunVal fun, Proto target) {
+        if (fun.env() instanceof Env.ArrayEnv<Value> env && env.isOf(target.captured)) {
+            return env;
+        }
+        if (target.captured.length == 0) {
+            return null;
+        }
+        Object[] values = new Object[target.captured.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fun.env().lookup(target.captured[i]);
+        }
+        return (Env.ArrayEnv<Value>) Env.ArrayEnv.<Value>of(target.captured, values);
+    }
+
+    /**
+     * The Proto of the function called from a call site of proto, which the
+     * site remembers for the next call.
+     */
+    private Proto target(Proto proto, int site, Value.FunVal fun) {
+        Proto target = proto.siteTargets[site];
+        if (target != null && target.body == fun.body()) {
+            return target;
+        }
+        target = bodies.get(fun.body());
+        if (target == null) {
+            Module module = Compiler.compile(fun);
+            link(module);
+            target = module.main();
+        }
+        proto.siteTargets[site] = target;
+        return target;
+    }
+
+    private void push(int depth, Proto proto, Env.ArrayEnv<Value> captured, int pc, int base, int result) {
+        if (depth == frameProtos.length) {
+            int length = depth * 2;
+            frameProtos = Arrays.copyOf(frameProtos, length);
+            frameCaptured = Arrays.copyOf(frameCaptured, length);
+            framePcs = Arrays.copyOf(framePcs, length);
+            frameBases = Arrays.copyOf(frameBases, length);
+            frameResults = Arrays.copyOf(frameResults, length);
+        }
+        frameProtos[depth] = proto;
+        frameCaptured[depth] = captured;
+        framePcs[depth] = pc;
+        frameBases[depth] = base;
+        frameResults[depth] = result;
+    }
+
+    private Value execute(Proto main) {
+        Proto proto = main;
+        Module module = proto.module;
+        int[] link = links.get(module);
+        int[] code = proto.code;
+        Value[] constants = proto.constants;
+        Env.ArrayEnv<Value> captured = null;
+        Object[] regs = ensure(proto.registers);
+        int base = 0;
+        int pc = 0;
+        int depth = 0;
+        try {
+            while (true) {
+                switch (code[pc]) {
+                    case Opcode.MOVE -> {
+                        regs[base + code[pc + 1]] = regs[base + code[pc + 2]];
+                        pc += 3;
+                    }
+                    case Opcode.CONST -> {
+                        regs[base + code[pc + 1]] = constants[code[pc + 2]];
+                        pc += 3;
+                    }
+                    case Opcode.GLOBAL -> {
+                        regs[base + code[pc + 1]] = global(captured, code[pc + 2], link[code[pc + 3]], code[pc + 4] != 0);
+                        pc += 5;
+                    }
+                    case Opcode.CAPTURED -> {
+                        regs[base + code[pc + 1]] = captured.value(code[pc + 2]);
+                        pc += 3;
+                    }
+                    case Opcode.DEFINE -> {
+                        // not kept in a local, as compiling a function during a call may grow the array
+                        int slot = link[code[pc + 1]];
+                        globals[slot] = regs[base + code[pc + 2]];
+                        globalEnv = globalEnv.extend(names.get(slot), (Value) globals[slot]);
+                        session.setGlobalEnv(globalEnv);
+                        pc += 3;
+                    }
+                    case Opcode.ADD -> {
+                        int n = code[pc + 2];
+                        double result = 0;
+                        for (int i = 0; i < n; i++) {
+                            result += num(regs, base, constants, code[pc + 3 + i]);
+                        }
+                        regs[base + code[pc + 1]] = new NumVal(result);
+                        pc += 3 + n;
+                    }
+                    case Opcode.SUB -> {
+                        int n = code[pc + 2];
+                        double result = num(regs, base, constants, code[pc + 3]);
+                        for (int i = 1; i < n; i++) {
+                            result -= num(regs, base, constants, code[pc + 3 + i]);
+                        }
+                        regs[base + code[pc + 1]] = new NumVal(result);
+                        pc += 3 + n;
+                    }
+                    case Opcode.MUL -> {
+                        int n = code[pc + 2];
+                        double result = 1;
+                        for (int i = 0; i < n; i++) {
+                            result *= num(regs, base, constants, code[pc + 3 + i]);
+                        }
+                        regs[base + code[pc + 1]] = new NumVal(result);
+                        pc += 3 + n;
+                    }
+                    case Opcode.DIV -> {
+                        int n = code[pc + 2];
+                        double result = num(regs, base, constants, code[pc + 3]);
+                        for (int i = 1; i < n; i++) {
+                            result /= num(regs, base, constants, code[pc + 3 + i]);
+                        }
+                        regs[base + code[pc + 1]] = new NumVal(result);
+                        pc += 3 + n;
+                    }
+                    case Opcode.LESS -> {
+                        regs[base + code[pc + 1]] = new BoolVal(num(regs, base, constants, code[pc + 2]) < num(regs, base, constants, code[pc + 3]));
+                        pc += 4;
+                    }
+                    case Opcode.EQUAL -> {
+                        regs[base + code[pc + 1]] = new BoolVal(num(regs, base, constants, code[pc + 2]) == num(regs, base, constants, code[pc + 3]));
+                        pc += 4;
+                    }
+                    case Opcode.GREATER -> {
+                        regs[base + code[pc + 1]] = new BoolVal(num(regs, base, constants, code[pc + 2]) > num(regs, base, constants, code[pc + 3]));
+                        pc += 4;
+                    }
+                    case Opcode.JUMP -> pc = code[pc + 1];
+                    case Opcode.JUMP_IF_FALSE -> pc = ((BoolVal) regs[base + code[pc + 1]]).v() ? pc + 3 : code[pc + 2];
+                    case Opcode.JUMP_IF_NOT_LESS ->
+                            pc = num(regs, base, constants, code[pc + 1]) < num(regs, base, constants, code[pc + 2]) ? pc + 4 : code[pc + 3];
+                    case Opcode.JUMP_IF_NOT_EQUAL ->
+                            pc = num(regs, base, constants, code[pc + 1]) == num(regs, base, constants, code[pc + 2]) ? pc + 4 : code[pc + 3];
+                    case Opcode.JUMP_IF_NOT_GREATER ->
+                            pc = num(regs, base, constants, code[pc + 1]) > num(regs, base, constants, code[pc + 2]) ? pc + 4 : code[pc + 3];
+                    case Opcode.CLOSURE -> {
+                        Proto target = module.protos[code[pc + 2]];
+                        int n = code[pc + 3];
+                        Object[] values = new Object[n];
+                        for (int i = 0; i < n; i++) {
+                            values[i] = regs[base + code[pc + 4 + i]];
+                        }
+                        regs[base + code[pc + 1]] = new Value.FunVal(Env.ArrayEnv.of(target.captured, values), target.formals, target.body);
+                        pc += 4 + n;
+                    }
+                    case Opcode.CALL, Opcode.TAIL_CALL, Opcode.CALL_GLOBAL, Opcode.TAIL_CALL_GLOBAL -> {
+                        int op = code[pc];
+                        boolean tail = op == Opcode.TAIL_CALL || op == Opcode.TAIL_CALL_GLOBAL;
+                        // where the operator is, after the result register of a call
+                        int at = tail ? pc + 1 : pc + 2;
+                        Value.FunVal fun;
+                        if (op == Opcode.CALL_GLOBAL || op == Opcode.TAIL_CALL_GLOBAL) {
+                            fun = (Value.FunVal) global(captured, code[at], link[code[at + 1]], true);
+                            at++;
+                        } else {
+                            fun = (Value.FunVal) regs[base + code[at]];
+                        }
+                        Proto target = target(proto, code[at + 1], fun);
+                        int n = code[at + 2];
+                        int top = base + proto.registers;
+                        if (top + target.registers + n > regs.length) {
+                            regs = ensure(top + target.registers + n);
+                        }
+                        for (int i = 0; i < n; i++) {
+                            regs[top + i] = regs[base + code[at + 3 + i]];
+                        }
+                        if (tail) {
+                            for (int i = 0; i < n; i++) {
+                                regs[base + i] = regs[top + i];
+                            }
+                        } else {
+                            if (depth == MAX_FRAMES) {
+                                return new Value.DynamicError("Stack overflow");
+                            }
+                            push(depth++, proto, captured, at + 3 + n, base, base + code[pc + 1]);
+                            base = top;
+                        }
+                        proto = target;
+                        code = proto.code;
+                        constants = proto.constants;
+                        captured = captured(fun, target);
+                        if (proto.module != module) {
+                            module = proto.module;
+                            link = links.get(module);
+                        }
+                        pc = 0;
+                    }
+                    case Opcode.RETURN -> {
+                        Value result = (Value) regs[base + code[pc + 1]];
+                        if (depth == 0) {
+                            return result;
+                        }
+                        depth--;
+                        proto = frameProtos[depth];
+                        captured = frameCaptured[depth];
+                        pc = framePcs[depth];
+                        base = frameBases[depth];
+                        regs[frameResults[depth]] = result;
+                        code = proto.code;
+                        constants = proto.constants;
+                        if (proto.module != module) {
+                            module = proto.module;
+                            link = links.get(module);
+                        }
+                    }
+                    case Opcode.CAR -> {
+                        regs[base + code[pc + 1]] = ((Value.PairVal) regs[base + code[pc + 2]]).fst();
+                        pc += 3;
+                    }
+                    case Opcode.CDR -> {
+                        regs[base + code[pc + 1]] = ((Value.PairVal) regs[base + code[pc + 2]]).snd();
+                        pc += 3;
+                    }
+                    case Opcode.CONS -> {
+                        regs[base + code[pc + 1]] = new Value.PairVal((Value) regs[base + code[pc + 2]], (Value) regs[base + code[pc + 3]]);
+                        pc += 4;
+                    }
+                    case Opcode.LIST -> {
+                        int n = code[pc + 3];
+                        Value[] elems = new Value[n];
+                        for (int i = 0; i < n; i++) {
+                            elems[i] = (Value) regs[base + code[pc + 4 + i]];
+                        }
+                        Type type = switch (code[pc + 2]) {
+                            case Opcode.LIST_NUMS -> Type.NumT.getInstance();
+                            case Opcode.LIST_BOOLS -> Type.BoolT.getInstance();
+                            default -> null;
+                        };
+                        regs[base + code[pc + 1]] = Value.ListVal.of(type, elems);
+                        pc += 4 + n;
+                    }
+                    case Opcode.NULL -> {
+                        regs[base + code[pc + 1]] = new BoolVal(regs[base + code[pc + 2]] instanceof Value.Null);
+                        pc += 3;
+                    }
+                    case Opcode.REF -> {
+                        regs[base + code[pc + 1]] = heap.ref((Value) regs[base + code[pc + 2]]);
+                        pc += 3;
+                    }
+                    case Opcode.CELL -> {
+                        regs[base + code[pc + 1]] = new Value.CellVal((Value) regs[base + code[pc + 2]]);
+                        pc += 3;
+                    }
+                    case Opcode.DEREF -> {
+                        Value loc = (Value) regs[base + code[pc + 2]];
+                        regs[base + code[pc + 1]] = loc instanceof Value.CellVal cell ? cell.value()
+                                : heap.deref((Value.RefVal) loc);
+                        pc += 3;
+                    }
+                    case Opcode.ASSIGN -> {
+                        Value loc = (Value) regs[base + code[pc + 2]];
+                        Value value = (Value) regs[base + code[pc + 3]];
+                        regs[base + code[pc + 1]] = loc instanceof Value.CellVal cell ? cell.set(value)
+                                : heap.setref((Value.RefVal) loc, value);
+                        pc += 4;
+                    }
+                    case Opcode.FREE -> {
+                        heap.free((Value.RefVal) regs[base + code[pc + 2]]);
+                        regs[base + code[pc + 1]] = new Value.UnitVal();
+                        pc += 3;
+                    }
+                    default -> throw new IllegalStateException("Unknown opcode " + code[pc] + " in " + proto.name());
+                }
+            }
+        } catch (ClassCastException e) {
+            return new Value.DynamicError(failure(proto, pc, e));
+        }
+    }
+
+    /**
+     * The message the evaluators give when the dynamic check the instruction
+     * at pc makes fails.
+     */
+    private String failure(Proto proto, int pc, ClassCastException e) {
+        String message = switch (proto.code[pc]) {
+            case Opcode.CALL, Opcode.TAIL_CALL, Opcode.CALL_GLOBAL, Opcode.TAIL_CALL_GLOBAL -> "Operator not a function in call";
+            case Opcode.JUMP_IF_FALSE -> "Condition not a boolean in expression";
+            default -> null;
+        };
+        if (message == null) {
+            // a cast the evaluators leave to the JVM to check as well
+            return e.getMessage();
+        }
+        AST.ASTNode source = proto.sources.get(pc);
+        return source == null ? message : message + " " + ts.locate(source);
+    }
+}
@@ -0,0 +1,105 @@
+package typelang;
+
+import org.junit.jupiter.api.Test;
+import typelang.Type.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TypeTest {
+    private static final Type NUM = NumT.getInstance();
+    private static final Type BOOL = BoolT.getInstance();
+
+    private static void assertSameType(Type a, Type b) {
+        assertTrue(a.typeEqual(b), a + " should equal " + b);
+        assertTrue(b.typeEqual(a), b + " should equal " + a);
+        assertEquals(a, b);
+        assertEquals(b, a);
+        assertEquals(a.hashCode(), b.hashCode(), "equal types " + a + " and " + b + " hash alike");
+    }
+
+    private static void assertDifferentTypes(Type a, Type b) {
+        assertFalse(a.typeEqual(b), a + " should not equal " + b);
+        assertFalse(b.typeEqual(a), b + " should not equal " + a);
+        assertNotEquals(a, b);
+        assertNotEquals(b, a);
+    }
+
+    @Test
+    void listEqualsPairOfHeadAndList() {
+        assertSameType(new ListT(NUM), new PairT(NUM, new ListT(NUM)));
+        assertSameType(new ListT(NUM), new PairT(NUM, new PairT(NUM, new ListT(NUM))));
+    }
+
+    @Test
+    void listDiffersFromPairWithOtherHeadOrTail() {
+        assertDifferentTypes(new ListT(NUM), new PairT(BOOL, new ListT(NUM)));
+        assertDifferentTypes(new ListT(NUM), new PairT(NUM, new ListT(BOOL)));
+        assertDifferentTypes(new ListT(NUM), new PairT(NUM, NUM));
+        assertDifferentTypes(new ListT(NUM), new ListT(BOOL));
+    }
+
+    @Test
+    void nestedListsEqualTheirPairForms() {
+        Type inner = new PairT(NUM, new ListT(NUM));
+        assertSameType(new ListT(new ListT(NUM)), new PairT(inner, new ListT(new ListT(NUM))));
+        assertSameType(new ListT(new ListT(NUM)), new ListT(inner));
+    }
+
+    @Test
+    void listsInsideFunctionAndReferenceTypes() {
+        Type list = new ListT(NUM);
+        Type pair = new PairT(NUM, new ListT(NUM));
+        assertSameType(new FuncT(List.of(list), list), new FuncT(List.of(pair), pair));
+        assertSameType(new RefT(list), new RefT(pair));
+        assertDifferentTypes(new FuncT(List.of(list), list), new FuncT(List.of(list, list), list));
+        assertDifferentTypes(new RefT(list), new RefT(new ListT(BOOL)));
+    }
+
+    @Test
+    void canonicalFoldsPairsIntoLists() {
+        Type list = new ListT(NUM);
+        assertSame(list, new PairT(NUM, list).canonical());
+        Type pair = new PairT(NUM, BOOL);
+        assertSame(pair, pair.canonical());
+    }
+
+    @Test
+    void equalTypesAreTheSameKey() {
+        Map<Type, String> map = new HashMap<>();
+        map.put(new ListT(NUM), "list");
+        assertEquals("list", map.get(new PairT(NUM, new ListT(NUM))));
+        assertNull(map.get(new PairT(NUM, NUM)));
+
+        Set<Type> set = new HashSet<>();
+        set.add(new PairT(NUM, new PairT(NUM, new ListT(NUM))));
+        set.add(new ListT(NUM));
+        set.add(new PairT(NUM, new ListT(NUM)));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    void longPairChainFoldsIntoList() {
+        Type chain = new ListT(NUM);
+        for (int i = 0; i < 2_000; i++) {
+            chain = new PairT(NUM, chain);
+        }
+        Type list = new ListT(NUM);
+        assertTrue(list.typeEqual(chain));
+        assertTrue(chain.typeEqual(list));
+        assertEquals(list.hashCode(), chain.hashCode());
+    }
+
+    @Test
+    void unknownTypeEqualsOnlyItself() {
+        Type unknown = UnknownT.getInstance();
+        assertSameType(unknown, unknown);
+        assertDifferentTypes(unknown, NUM);
+        assertDifferentTypes(new PairT(NUM, unknown), new PairT(NUM, BOOL));
+    }
+}